@@ -1,16 +1,22 @@
 package com.mvanniekerk.akka.compute;
 
+import akka.Done;
 import akka.NotUsed;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.AskPattern;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
 import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
 import akka.http.javadsl.model.StatusCodes;
 import akka.http.javadsl.model.ws.Message;
-import akka.http.javadsl.model.ws.TextMessage;
 import akka.http.javadsl.server.*;
+import akka.stream.Materializer;
 import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.Flow;
 import akka.stream.javadsl.Keep;
@@ -18,21 +24,47 @@ import akka.stream.javadsl.Sink;
 import akka.stream.javadsl.Source;
 import akka.stream.typed.javadsl.ActorSink;
 import akka.stream.typed.javadsl.ActorSource;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mvanniekerk.akka.compute.control.ClusterNode;
 import com.mvanniekerk.akka.compute.control.Control;
+import com.mvanniekerk.akka.compute.control.IngestSession;
+import com.mvanniekerk.akka.compute.control.IngressRoutes;
+import com.mvanniekerk.akka.compute.control.SocketOutbox;
 import com.mvanniekerk.akka.compute.control.SystemDescription;
+import com.mvanniekerk.akka.compute.control.WebSocketEncoding;
 import com.mvanniekerk.akka.compute.control.WebSocketMessage;
+import com.mvanniekerk.akka.compute.dispatch.InstrumentedExecutor;
+import com.mvanniekerk.akka.compute.logstore.LogStore;
+import com.mvanniekerk.akka.compute.metrics.MetricsRegistry;
+import com.mvanniekerk.akka.compute.metrics.OpenMetrics;
+import com.mvanniekerk.akka.compute.metrics.TraceCollector;
+import com.mvanniekerk.akka.compute.util.Codecs;
+import com.mvanniekerk.akka.compute.vertex.Batching;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+import com.mvanniekerk.akka.compute.vertex.Deployment;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 import com.mvanniekerk.akka.compute.vertex.VertexDescription;
+import com.typesafe.config.ConfigFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -45,6 +77,8 @@ public class HttpServerVector extends AllDirectives {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpServerVector.class);
 
     public static final Duration TIMEOUT = Duration.ofSeconds(3);
+    private static final Duration FRAME_TIMEOUT = Duration.ofSeconds(10);
+    private static final ContentType METRICS_CONTENT_TYPE = ContentTypes.parse(OpenMetrics.CONTENT_TYPE);
     private final ActorSystem<Control.Message> system;
     private final ActorRef<Control.Message> control;
 
@@ -54,16 +88,23 @@ public class HttpServerVector extends AllDirectives {
     }
 
     public static void main(String[] args) throws IOException {
-        ActorSystem<Control.Message> system = ActorSystem.create(Control.create(), "control");
+        var clustered = ConfigFactory.load().getBoolean("vertex.cluster.enabled");
+        ActorSystem<Control.Message> system = ActorSystem.create(
+                clustered ? ClusterNode.create() : Control.create(), "control");
+        // The Control of a cluster restores the graph itself, on whichever node it runs.
+        if (!clustered) {
+            restore(system);
+        }
 
         Http http = Http.get(system);
 
         HttpServerVector app = new HttpServerVector(system);
 
-        CompletionStage<ServerBinding> binding = http.newServerAt("localhost", 8080)
+        var port = system.settings().config().getInt("vertex.http.port");
+        CompletionStage<ServerBinding> binding = http.newServerAt("localhost", port)
                 .bind(app.createRoute());
 
-        System.out.println("Server online at http://localhost:8080/\nPress RETURN to stop...");
+        System.out.println("Server online at http://localhost:" + port + "/\nPress RETURN to stop...");
         System.in.read(); // let it run until user presses return
 
         binding
@@ -71,11 +112,31 @@ public class HttpServerVector extends AllDirectives {
                 .thenAccept(unbound -> system.terminate()); // and shutdown when done
     }
 
-    private record CreateVertex(String name, String code) {}
+    /**
+     * Waits for the graph in the journal to be restored before serving, for at most the restore timeout. The vertices
+     * start, and compile their code, on their own dispatchers in parallel.
+     */
+    private static void restore(ActorSystem<Control.Message> system) {
+        var timeout = system.settings().config().getDuration("vertex.journal.restore-timeout");
+        var start = System.nanoTime();
+        try {
+            AskPattern.<Control.Message, Done>ask(system, Control.Restore::new, timeout, system.scheduler())
+                    .toCompletableFuture()
+                    .get();
+            LOGGER.info("Restored the graph in {} ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.warn("The graph was not restored within {}, serving anyway", timeout);
+        }
+    }
+
+    private record CreateVertex(String name, String code, Deployment deployment) {}
     private record DeleteVertex(String id, String name) {}
     private record LoadCode(String code) {}
     private record LoadName(String name) {}
-    private record Link(String source, String target) {}
+    private record Link(String source, String target, Batching batching) {}
+    private record MetricsSubscription(List<String> metrics) {}
 
     /*
     /graph - GET the graph
@@ -90,6 +151,11 @@ public class HttpServerVector extends AllDirectives {
     /send/{name} - POST a message to a vertex
     /sendws - open a WS connection for sending messages directly to vertices
     /ws - open a WS connection for subscribing to log messages and metrics
+    /metrics - GET the metrics in the OpenMetrics format
+    /traces - GET the latency per path of the sampled messages, DELETE to start over
+    /logs/{id} - GET the stored log lines of a vertex, filtered by the from, to, level, contains and limit parameters
+    /placement - GET the last rounds of placing the vertices over the nodes of a cluster, with their cross-node traffic,
+        POST to plan a round now
      */
 
     private Route createRoute() {
@@ -106,13 +172,30 @@ public class HttpServerVector extends AllDirectives {
                 path(separateOnSlashes("graph/edge"), () -> post(this::linkRoute)),
                 pathPrefix("send", this::sendRoute),
                 path("sendws", this::sendWsRoute),
-                path("ws", this::wsRoute)
+                path("ws", this::wsRoute),
+                path("metrics", () -> get(this::metricsRoute)),
+                path("traces", () -> concat(
+                        get(() -> complete(StatusCodes.OK, TraceCollector.get(system).paths(), Jackson.marshaller())),
+                        delete(() -> {
+                            TraceCollector.get(system).reset();
+                            return complete(StatusCodes.OK, "traces cleared", Jackson.marshaller());
+                        }))),
+                pathPrefix("logs", () -> path(id -> get(() -> parameterMap(params -> logsRoute(id, params))))),
+                path("placement", () -> concat(
+                        get(this::placementRoute),
+                        post(() -> {
+                            control.tell(new Control.Rebalance());
+                            return complete(StatusCodes.ACCEPTED, "rebalancing", Jackson.marshaller());
+                        })))
         );
 
         final RejectionHandler rejectionHandler = corsRejectionHandler().withFallback(RejectionHandler.defaultHandler());
 
         final ExceptionHandler exceptionHandler = ExceptionHandler.newBuilder()
-                .match(NoSuchElementException.class, ex -> complete(StatusCodes.NOT_FOUND, ex.getMessage(), Jackson.marshaller()))
+                .match(NoSuchElementException.class,
+                        ex -> complete(StatusCodes.NOT_FOUND, ex.getMessage(), Jackson.marshaller()))
+                .match(IllegalArgumentException.class,
+                        ex -> complete(StatusCodes.BAD_REQUEST, ex.getMessage(), Jackson.marshaller()))
                 .build();
 
         // Combining the two handlers only for convenience
@@ -125,6 +208,41 @@ public class HttpServerVector extends AllDirectives {
         return handleErrors.apply(() -> cors(() -> handleErrors.apply(() -> route)));
     }
 
+    /**
+     * Renders the metrics the vertices last published, without asking any actor.
+     */
+    private Route metricsRoute() {
+        var text = OpenMetrics.render(MetricsRegistry.get(system).samples(), InstrumentedExecutor.peek(),
+                IngressRoutes.get(system).ingest());
+        return complete(HttpEntities.create(METRICS_CONTENT_TYPE, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Scans the segments of the vertex on the blocking dispatcher, since reading a mapped file may wait for the disk.
+     * Times are ISO-8601 instants or epoch milliseconds; the last hour is the default.
+     */
+    private Route logsRoute(String id, Map<String, String> params) {
+        var to = params.containsKey("to") ? parseInstant(params.get("to")) : Instant.now();
+        var from = params.containsKey("from") ? parseInstant(params.get("from")) : to.minus(Duration.ofHours(1));
+        var level = CoreLog.Level.valueOf(params.getOrDefault("level", "debug").toUpperCase(Locale.ROOT));
+        var limit = Integer.parseInt(params.getOrDefault("limit", "1000"));
+        var contains = params.get("contains");
+        var query = CompletableFuture.supplyAsync(
+                () -> LogStore.get(system).query(id, from, to, level, contains, limit),
+                system.dispatchers().lookup(DispatcherSelector.blocking()));
+        return onSuccess(query, result -> complete(StatusCodes.OK, result, Jackson.marshaller(Codecs.mapper())));
+    }
+
+    private static Instant parseInstant(String value) {
+        try {
+            return value.chars().allMatch(Character::isDigit)
+                    ? Instant.ofEpochMilli(Long.parseLong(value))
+                    : Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a time: " + value, e);
+        }
+    }
+
     private Route sendWsRoute() {
         Source<Message, NotUsed> source = Source.never();
         var flow = Flow.fromSinkAndSource(createSendMessageSink(), source);
@@ -132,35 +250,78 @@ public class HttpServerVector extends AllDirectives {
         return handleWebSocketMessages(flow);
     }
 
+    /**
+     * Frames go straight to the vertices, without passing through the control actor. A frame is JSON text, or Smile
+     * or CBOR binary, and holds one {@code {"name", "body"}} message or an array of them. Frames are decoded on the
+     * connection, and the next frame is only read once the {@link IngestSession} has acknowledged the previous one.
+     */
     private Sink<Message, NotUsed> createSendMessageSink() {
-        Sink<Control.Message, NotUsed> actorSink = ActorSink.actorRef(control,
-                new Control.ReceiveMsg(null, null),
-                error -> new Control.ReceiveMsg("fail", null));
+        return Sink.fromMaterializer((materializer, attributes) -> {
+            var sessionId = UUID.randomUUID().toString();
+            var session = system.systemActorOf(IngestSession.create(sessionId), "ingest-" + sessionId, Props.empty());
+            Sink<IngestSession.Frame, NotUsed> sessionSink = ActorSink.actorRefWithBackpressure(session,
+                    IngestSession.Received::new,
+                    IngestSession.Init::new,
+                    IngestSession.Ack.INSTANCE,
+                    new IngestSession.Completed(),
+                    IngestSession.Failed::new);
+            return Flow.of(Message.class)
+                    .mapAsync(1, msg -> decodeFrame(msg, materializer))
+                    .to(sessionSink);
+        }).mapMaterializedValue(future -> NotUsed.getInstance());
+    }
 
-        var objectMapper = new ObjectMapper();
-        return Flow.of(Message.class)
-                .map(msg -> msg.asTextMessage().getStrictText())
-                .<Control.Message>map(text -> objectMapper.readValue(text, Control.ReceiveMsg.class))
-                .toMat(actorSink, Keep.right());
+    private static CompletionStage<IngestSession.Frame> decodeFrame(Message message, Materializer materializer) {
+        if (message.isText()) {
+            return message.asTextMessage().toStrict(FRAME_TIMEOUT.toMillis(), materializer)
+                    .thenApply(text -> {
+                        // Frames are counted in bytes, as they arrived, whether they are text or binary.
+                        var bytes = text.getStrictText().getBytes(StandardCharsets.UTF_8);
+                        return decodeFrame(bytes.length, () -> Codecs.readTree(bytes));
+                    });
+        }
+        return message.asBinaryMessage().toStrict(FRAME_TIMEOUT.toMillis(), materializer)
+                .thenApply(binary -> {
+                    var bytes = binary.getStrictData().toArray();
+                    return decodeFrame(bytes.length, () -> Codecs.readBinaryTree(bytes));
+                });
+    }
+
+    private static IngestSession.Frame decodeFrame(int size, Supplier<JsonNode> reader) {
+        JsonNode frame;
+        try {
+            frame = reader.get();
+        } catch (IllegalArgumentException e) {
+            return new IngestSession.Frame(List.of(), size, true);
+        }
+        var items = new ArrayList<IngestSession.Item>(frame.isArray() ? frame.size() : 1);
+        for (JsonNode message : frame.isArray() ? frame : List.of(frame)) {
+            var name = message.path("name");
+            var body = message.get("body");
+            if (!name.isTextual() || body == null) {
+                return new IngestSession.Frame(List.of(), size, true);
+            }
+            items.add(new IngestSession.Item(name.textValue(), Payload.of(body)));
+        }
+        return new IngestSession.Frame(items, size, false);
     }
 
+    /**
+     * Messages are JSON text frames, or CBOR binary frames with {@code ?encoding=cbor}.
+     */
     private Route wsRoute() {
-        return handleWebSocketMessages(createControlWebsocketFlow());
+        return parameterOptional("encoding", encoding -> handleWebSocketMessages(createControlWebsocketFlow(
+                encoding.map(WebSocketEncoding::parse).orElse(WebSocketEncoding.JSON))));
     }
 
-    private Flow<Message, Message, NotUsed> createControlWebsocketFlow() {
+    private Flow<Message, Message, NotUsed> createControlWebsocketFlow(WebSocketEncoding encoding) {
         var sessionId = UUID.randomUUID().toString();
         var source = createLogMessageActorSource(sessionId);
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
-
         Sink<Message, NotUsed> sink = createLogMessageSink(sessionId);
 
-        var flow = Flow.fromSinkAndSource(sink, source);
-
-        return flow.map(objectMapper::writeValueAsString)
-                .map((akka.japi.function.Function<String, Message>) TextMessage::create);
+        var maxLogLines = system.settings().config().getInt("vertex.websocket.max-log-lines");
+        return Flow.fromSinkAndSource(sink, source.via(SocketOutbox.flow(encoding, maxLogLines)));
     }
 
     private Sink<Message, NotUsed> createLogMessageSink(String sessionId) {
@@ -168,18 +329,39 @@ public class HttpServerVector extends AllDirectives {
                 new Control.LogSubscribe(sessionId, null),
                 error -> new Control.LogSubscribe(sessionId, null));
 
+        var subscriptionReader = Codecs.reader(MetricsSubscription.class);
         return Flow.of(Message.class)
                 .map(msg -> msg.asTextMessage().getStrictText())
-                .<Control.Message>map(text -> new Control.LogSubscribe(sessionId, text))
+                .<Control.Message>mapConcat(text -> {
+                    // A JSON object selects the vertices to get the metrics of, anything else is a vertex to get
+                    // the logs of.
+                    if (text.startsWith("{")) {
+                        MetricsSubscription subscription;
+                        try {
+                            subscription = subscriptionReader.readValue(text);
+                        } catch (JsonProcessingException e) {
+                            // A malformed frame is skipped, rather than closing the socket.
+                            LOGGER.debug("Ignoring a malformed subscription on socket {}: {}", sessionId, e.toString());
+                            return List.of();
+                        }
+                        var vertexIds = subscription.metrics == null ? null : Set.copyOf(subscription.metrics);
+                        return List.of(new Control.MetricsSubscribe(sessionId, vertexIds));
+                    }
+                    return List.of(new Control.LogSubscribe(sessionId, text));
+                })
                 .toMat(actorSink, Keep.right());
     }
 
+    /**
+     * The outbox right behind the source takes every message as it comes, so the buffer only holds messages while the
+     * outbox is being encoded.
+     */
     private Source<WebSocketMessage, NotUsed> createLogMessageActorSource(String sessionId) {
         Source<WebSocketMessage, ActorRef<WebSocketMessage>> source = ActorSource.actorRef(
                 msg -> false,
                 msg -> Optional.empty(),
                 500,
-                OverflowStrategy.dropTail());
+                OverflowStrategy.dropHead());
         var actorRefAndSource = source.preMaterialize(system);
         control.tell(new Control.RegisterControlWebSocket(sessionId, actorRefAndSource.first()));
         return actorRefAndSource.second();
@@ -189,7 +371,7 @@ public class HttpServerVector extends AllDirectives {
         return post(() -> entity(Jackson.unmarshaller(Link.class), body -> {
             CompletionStage<Control.LinkReply> reply = AskPattern.ask(
                     control,
-                    replyTo -> new Control.LinkVertices(replyTo, body.source, body.target),
+                    replyTo -> new Control.LinkVertices(replyTo, body.source, body.target, body.batching),
                     TIMEOUT,
                     system.scheduler());
             return onSuccess(reply, id -> complete(StatusCodes.OK, id, Jackson.marshaller()));
@@ -219,8 +401,11 @@ public class HttpServerVector extends AllDirectives {
     }
 
     private Route sendRoute() {
+        var routes = IngressRoutes.get(system);
         return post(() -> path(name -> entity(genericJsonUnmarshaller(), body -> {
-            control.tell(new Control.ReceiveMsg(name, body));
+            if (routes.send(name, Payload.of(body)) == 0) {
+                throw new NoSuchElementException("No vertex is named " + name);
+            }
             return complete(StatusCodes.OK, "message sent", Jackson.marshaller());
         })));
     }
@@ -229,7 +414,7 @@ public class HttpServerVector extends AllDirectives {
         return entity(Jackson.unmarshaller(CreateVertex.class), body -> {
             CompletionStage<Control.VertexReply> reply = AskPattern.ask(
                     control,
-                    replyTo -> new Control.CreateVertex(replyTo, body.name, body.code),
+                    replyTo -> new Control.CreateVertex(replyTo, body.name, body.code, body.deployment),
                     TIMEOUT,
                     system.scheduler());
             return onSuccess(reply, id -> complete(StatusCodes.OK, id, Jackson.marshaller()));
@@ -243,18 +428,32 @@ public class HttpServerVector extends AllDirectives {
         });
     }
 
+    /**
+     * Replaces the graph, changing only what differs. Responds once the new code is running.
+     */
     private Route postGraphRoute() {
+        var timeout = system.settings().config().getDuration("vertex.load.converge-timeout").plus(TIMEOUT);
         return post(() -> entity(Jackson.unmarshaller(SystemDescription.class), body -> {
-            control.tell(new Control.LoadStateRequest(body));
-            CompletionStage<SystemDescription> reply = AskPattern.ask(
+            CompletionStage<Control.LoadStateReply> reply = AskPattern.ask(
                     control,
-                    Control.GetStateRequest::new,
-                    TIMEOUT,
+                    replyTo -> new Control.LoadStateRequest(replyTo, body),
+                    timeout,
                     system.scheduler());
-            return onSuccess(reply, description -> complete(StatusCodes.OK, description, Jackson.marshaller()));
+            return onSuccess(reply, loaded -> loaded.system() == null
+                    ? complete(StatusCodes.BAD_REQUEST, loaded.status())
+                    : complete(StatusCodes.OK, loaded.system(), Jackson.marshaller()));
         }));
     }
 
+    private Route placementRoute() {
+        CompletionStage<Control.PlacementReply> reply = AskPattern.ask(
+                control,
+                Control.GetPlacement::new,
+                TIMEOUT,
+                system.scheduler());
+        return onSuccess(reply, placement -> complete(StatusCodes.OK, placement, Jackson.marshaller(Codecs.mapper())));
+    }
+
     private Route getGraphRoute() {
         CompletionStage<SystemDescription> reply = AskPattern.ask(
                 control,
@@ -0,0 +1,256 @@
+package com.mvanniekerk.akka.compute.cluster;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.cluster.MemberStatus;
+import akka.cluster.typed.Cluster;
+import com.mvanniekerk.akka.compute.control.ClusterNode;
+import com.mvanniekerk.akka.compute.control.Control;
+import com.mvanniekerk.akka.compute.control.SystemDescription;
+import com.mvanniekerk.akka.compute.control.graph.Edge;
+import com.mvanniekerk.akka.compute.metrics.MetricsRegistry;
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+import com.mvanniekerk.akka.compute.vertex.VertexDescription;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Measures how the throughput of a graph changes as it is spread over more nodes. For every cluster size from one node
+ * up to the given number, it starts that many nodes on localhost in this JVM, loads the same graph of independent
+ * pipelines, and reports the messages per second that reach the ends of the pipelines. Every pipeline is a source
+ * that sends as fast as its edge allows, a relay and a sink, so that most edges cross nodes once there are several.
+ * With more than one node, it then has {@link Control} place the vertices by their traffic, and measures again.
+ * <p>
+ * Arguments: the largest number of nodes (3), the number of pipelines (8) and the seconds to measure (10).
+ */
+public final class ClusterBenchmark {
+    private static final int BASE_PORT = 25600;
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration WARM_UP = Duration.ofSeconds(5);
+    /**
+     * Long enough for the rates over the edges to reflect the moves of the previous round.
+     */
+    private static final Duration SETTLE = Duration.ofSeconds(10);
+    private static final int MAX_ROUNDS = 3;
+    private static final Duration REPORT_INTERVAL = Duration.ofSeconds(1);
+
+    private record Measurement(double throughput, double crossNode) {}
+
+    private static final String SOURCE = """
+            import com.mvanniekerk.akka.compute.compute.ComputeCore;
+            import com.mvanniekerk.akka.compute.vertex.Core;
+            import java.time.Duration;
+            import java.util.Map;
+            public class BenchmarkSource extends ComputeCore {
+                private long number;
+                public BenchmarkSource(Core core) {
+                    super(core);
+                    schedulePeriodic("burst", Duration.ofMillis(1), () -> {
+                        for (int i = 0; i < 100; i++) {
+                            send(Map.of("number", number++));
+                        }
+                    });
+                }
+            }""";
+    private static final String RELAY = """
+            import com.mvanniekerk.akka.compute.compute.ComputeCore;
+            import com.mvanniekerk.akka.compute.vertex.Core;
+            import com.mvanniekerk.akka.compute.vertex.Payload;
+            public class BenchmarkRelay extends ComputeCore {
+                public BenchmarkRelay(Core core) {
+                    super(core);
+                }
+                @Override
+                public void receive(Payload message) {
+                    send(message);
+                }
+            }""";
+
+    private ClusterBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        var pipelines = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        var seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        var results = new ArrayList<String>();
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            var measurements = run(nodes, pipelines, seconds);
+            var before = measurements.get(0);
+            var after = measurements.get(measurements.size() - 1);
+            results.add(String.format("%5d %10d %15.0f %10.0f%% %15.0f %10.0f%%", nodes, pipelines * 3,
+                    before.throughput(), before.crossNode() * 100, after.throughput(), after.crossNode() * 100));
+        }
+        System.out.printf("%n%5s %10s %15s %11s %15s %11s%n", "nodes", "vertices", "messages/s", "cross-node",
+                "placed msg/s", "cross-node");
+        results.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    /**
+     * The throughput and cross-node traffic as the graph was loaded, and after placing it if there are several nodes.
+     */
+    private static List<Measurement> run(int nodes, int pipelines, int seconds) throws Exception {
+        // Every round gets its own ports, so that it does not wait for the previous round to release them.
+        var seedPort = BASE_PORT + 10 * nodes;
+        var systems = new ArrayList<ActorSystem<Control.Message>>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                systems.add(startNode(seedPort + i, seedPort));
+            }
+            awaitMembers(systems, nodes);
+            // Control places new vertices on the nodes it has heard from.
+            Thread.sleep(2 * REPORT_INTERVAL.toMillis());
+            var start = System.nanoTime();
+            AskPattern.<Control.Message, Control.LoadStateReply>ask(systems.get(0),
+                            replyTo -> new Control.LoadStateRequest(replyTo, graph(pipelines)), TIMEOUT,
+                            systems.get(0).scheduler())
+                    .toCompletableFuture()
+                    .get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            System.out.printf("%d nodes: graph running after %d ms%n", nodes, (System.nanoTime() - start) / 1_000_000);
+            Thread.sleep(WARM_UP.toMillis());
+            var measurements = new ArrayList<Measurement>();
+            measurements.add(measure(systems, seconds));
+            System.out.printf("%d nodes: %.0f messages per second, %.0f%% of the traffic crosses nodes%n", nodes,
+                    measurements.get(0).throughput(), measurements.get(0).crossNode() * 100);
+            if (nodes > 1) {
+                place(systems.get(0));
+                Thread.sleep(WARM_UP.toMillis());
+                measurements.add(measure(systems, seconds));
+                System.out.printf("%d nodes placed: %.0f messages per second, %.0f%% of the traffic crosses nodes%n",
+                        nodes, measurements.get(1).throughput(), measurements.get(1).crossNode() * 100);
+            }
+            return measurements;
+        } finally {
+            systems.forEach(ActorSystem::terminate);
+            for (ActorSystem<?> system : systems) {
+                system.getWhenTerminated().toCompletableFuture().get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static ActorSystem<Control.Message> startNode(int port, int seedPort) {
+        var config = ConfigFactory.parseString(String.join("\n",
+                        "akka.remote.artery.canonical.port = " + port,
+                        "akka.cluster.seed-nodes = [\"akka://control@127.0.0.1:" + seedPort + "\"]",
+                        "vertex.journal.enabled = false",
+                        "vertex.log-store.enabled = false",
+                        // The benchmark places the vertices itself, and moves them all in one round.
+                        "vertex.cluster.placement.interval = 1h",
+                        "vertex.cluster.placement.report-interval = " + REPORT_INTERVAL.toMillis() + "ms",
+                        "vertex.cluster.placement.max-moves = 1000",
+                        "akka.cluster.jmx.multi-mbeans-in-same-jvm = on"))
+                .withFallback(ConfigFactory.load("cluster"));
+        return ActorSystem.create(ClusterNode.create(), "control", config);
+    }
+
+    private static void awaitMembers(List<ActorSystem<Control.Message>> systems, int nodes)
+            throws InterruptedException {
+        var deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            var up = StreamSupport.stream(Cluster.get(systems.get(0)).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status() == MemberStatus.up())
+                    .count();
+            if (up == nodes) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("The cluster did not form within " + TIMEOUT);
+    }
+
+    private static SystemDescription graph(int pipelines) {
+        var vertices = new ArrayList<VertexDescription>();
+        var edges = new ArrayList<Edge>();
+        for (int i = 0; i < pipelines; i++) {
+            vertices.add(new VertexDescription("source-" + i, "Source" + i, SOURCE, null));
+            vertices.add(new VertexDescription("relay-" + i, "Relay" + i, RELAY, null));
+            vertices.add(new VertexDescription("sink-" + i, "Sink" + i, "NoopCompute", null));
+            edges.add(new Edge("source-relay-" + i, "source-" + i, "relay-" + i, null));
+            edges.add(new Edge("relay-sink-" + i, "relay-" + i, "sink-" + i, null));
+        }
+        return new SystemDescription(vertices, edges);
+    }
+
+    private static Measurement measure(List<ActorSystem<Control.Message>> systems, int seconds)
+            throws InterruptedException {
+        var before = received(systems);
+        var start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        var after = received(systems);
+        return new Measurement((after - before) * 1e9 / (System.nanoTime() - start), crossNode(systems));
+    }
+
+    /**
+     * Has Control place the vertices, round after round until a round moves nothing.
+     */
+    private static void place(ActorSystem<Control.Message> system) throws Exception {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            var rounds = placement(system).size();
+            system.tell(new Control.Rebalance());
+            var deadline = System.nanoTime() + TIMEOUT.toNanos();
+            List<Placement.Report> reports;
+            do {
+                Thread.sleep(100);
+                reports = placement(system);
+            } while (reports.size() == rounds && System.nanoTime() < deadline);
+            if (reports.size() == rounds || reports.get(reports.size() - 1).moves().isEmpty()) {
+                return;
+            }
+            System.out.printf("Moving %d vertices%n", reports.get(reports.size() - 1).moves().size());
+            Thread.sleep(SETTLE.toMillis());
+        }
+    }
+
+    private static List<Placement.Report> placement(ActorSystem<Control.Message> system) throws Exception {
+        return AskPattern.<Control.Message, Control.PlacementReply>ask(system, Control.GetPlacement::new, TIMEOUT,
+                        system.scheduler())
+                .toCompletableFuture()
+                .get(TIMEOUT.toSeconds(), TimeUnit.SECONDS)
+                .rounds();
+    }
+
+    /**
+     * The share of the messages over the edges that cross nodes, as last published by the vertices.
+     */
+    private static double crossNode(List<ActorSystem<Control.Message>> systems) {
+        var nodeByVertexId = new HashMap<String, Integer>();
+        for (int i = 0; i < systems.size(); i++) {
+            for (MetricsRegistry.Sample sample : MetricsRegistry.get(systems.get(i)).samples()) {
+                nodeByVertexId.put(sample.vertexId(), i);
+            }
+        }
+        var traffic = 0.0;
+        var crossNode = 0.0;
+        for (int i = 0; i < systems.size(); i++) {
+            for (MetricsRegistry.Sample sample : MetricsRegistry.get(systems.get(i)).samples()) {
+                for (Map.Entry<String, CoreMetrics.EdgeMetrics> edge : sample.metrics().edges().entrySet()) {
+                    var rate = edge.getValue().sent().tenSeconds();
+                    traffic += rate;
+                    if (!Integer.valueOf(i).equals(nodeByVertexId.get(edge.getKey()))) {
+                        crossNode += rate;
+                    }
+                }
+            }
+        }
+        return traffic == 0 ? 0 : crossNode / traffic;
+    }
+
+    /**
+     * The messages received by all sinks so far, as last published by the sinks on their own nodes.
+     */
+    private static long received(List<ActorSystem<Control.Message>> systems) {
+        return systems.stream()
+                .flatMap(system -> MetricsRegistry.get(system).samples().stream())
+                .filter(sample -> sample.vertexId().startsWith("sink-"))
+                .mapToLong(sample -> sample.metrics().messagesReceived())
+                .sum();
+    }
+}
@@ -0,0 +1,62 @@
+package com.mvanniekerk.akka.compute.cluster;
+
+import akka.serialization.SerializerWithStringManifest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mvanniekerk.akka.compute.util.Codecs;
+import com.mvanniekerk.akka.compute.vertex.CoreConsumer;
+import com.mvanniekerk.akka.compute.vertex.Payload;
+
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes the messages between vertices on different nodes as CBOR: the source and the JSON of the bodies. The
+ * {@link System#nanoTime()} of the sender means nothing on another node, so the queue wait of a message from another
+ * node starts when it arrives. The traces of sampled messages end at the node boundary.
+ */
+public class ConsumerSerializer extends SerializerWithStringManifest {
+    private static final String MESSAGE = "M";
+    private static final String BATCH = "B";
+
+    private record Wire(String sourceId, List<JsonNode> bodies) {}
+
+    @Override
+    public int identifier() {
+        return 7_400_001;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        return o instanceof CoreConsumer.MessageBatch ? BATCH : MESSAGE;
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        if (o instanceof CoreConsumer.Message message) {
+            return Codecs.writeValueAsCbor(new Wire(message.sourceId(), List.of(message.body().json())));
+        }
+        if (o instanceof CoreConsumer.MessageBatch batch) {
+            var bodies = new ArrayList<JsonNode>(batch.bodies().size());
+            batch.bodies().forEach(body -> bodies.add(body.json()));
+            return Codecs.writeValueAsCbor(new Wire(batch.sourceId(), bodies));
+        }
+        throw new IllegalArgumentException("Cannot serialize " + o.getClass());
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        var wire = Codecs.readBinaryTree(bytes);
+        var sourceId = wire.path("sourceId").isTextual() ? wire.get("sourceId").textValue() : null;
+        var bodies = new ArrayList<Payload>(wire.path("bodies").size());
+        wire.path("bodies").forEach(body -> bodies.add(Payload.of(body)));
+        switch (manifest) {
+            case MESSAGE:
+                return new CoreConsumer.Message(sourceId, bodies.get(0));
+            case BATCH:
+                return new CoreConsumer.MessageBatch(sourceId, bodies);
+            default:
+                throw new NotSerializableException("Unknown manifest " + manifest);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.mvanniekerk.akka.compute.cluster;
+
+import akka.actor.Address;
+import com.typesafe.config.Config;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Plans on which node the vertices of a cluster run, from the traffic over their edges and the load they put on their
+ * node. The plan first moves vertices off the nodes whose load is too far above the average, and then moves vertices
+ * to the node of the neighbours they exchange the most messages with, as long as that node has room for them, or swaps
+ * them with a vertex of that node. Every vertex moves at most once per plan, so that a plan never moves a vertex back
+ * and forth.
+ */
+public final class Placement {
+    /**
+     * A vertex counts for at least this share of a core, so that vertices that hardly do anything are still spread.
+     */
+    private static final double MIN_LOAD = 0.01;
+
+    /**
+     * What a node reports about one of its vertices.
+     *
+     * @param load           the share of a core the vertex uses
+     * @param sentByTargetId the messages per second sent to each target
+     */
+    public record VertexTraffic(String vertexId, double load, Map<String, Double> sentByTargetId) {}
+
+    /**
+     * @param traffic         the messages per second over all edges
+     * @param crossNodeBefore the messages per second over edges between nodes, as measured
+     * @param crossNodeAfter  the messages per second over edges between nodes, as expected after the moves
+     * @param moves           the node each moved vertex goes to
+     */
+    public record Report(Instant time, int nodes, double traffic, double crossNodeBefore, double crossNodeAfter,
+                         Map<String, String> moves) {}
+
+    public record Settings(int maxMoves, double imbalance, double minGain) {
+        public static Settings of(Config config) {
+            return new Settings(config.getInt("max-moves"), config.getDouble("imbalance"),
+                    config.getDouble("min-gain"));
+        }
+    }
+
+    public record Plan(Map<String, Address> moves, Report report) {}
+
+    private final Map<String, Address> nodeByVertexId;
+    private final Map<String, Double> loadByVertexId = new HashMap<>();
+    private final Map<String, Map<String, Double>> trafficByNeighbour = new HashMap<>();
+    private final Map<Address, Double> loadByNode = new HashMap<>();
+
+    private Placement(Map<String, Address> nodeByVertexId, Collection<Address> nodes,
+                      Collection<VertexTraffic> traffic) {
+        this.nodeByVertexId = new HashMap<>(nodeByVertexId);
+        nodes.forEach(node -> loadByNode.put(node, 0.0));
+        for (VertexTraffic vertex : traffic) {
+            if (!nodeByVertexId.containsKey(vertex.vertexId())) {
+                continue;
+            }
+            loadByVertexId.merge(vertex.vertexId(), vertex.load(), Double::sum);
+            vertex.sentByTargetId().forEach((targetId, rate) -> {
+                // The direction does not matter for where the vertices run, and an edge to itself never crosses.
+                if (nodeByVertexId.containsKey(targetId) && !targetId.equals(vertex.vertexId())) {
+                    trafficByNeighbour.computeIfAbsent(vertex.vertexId(), id -> new HashMap<>())
+                            .merge(targetId, rate, Double::sum);
+                    trafficByNeighbour.computeIfAbsent(targetId, id -> new HashMap<>())
+                            .merge(vertex.vertexId(), rate, Double::sum);
+                }
+            });
+        }
+        nodeByVertexId.forEach((id, node) -> loadByNode.merge(node, load(id), Double::sum));
+    }
+
+    /**
+     * @param nodeByVertexId the node every running vertex runs on
+     * @param nodes          the nodes that vertices may move to
+     * @param movable        the vertices that may move
+     */
+    public static Plan plan(Map<String, Address> nodeByVertexId, Collection<Address> nodes,
+                            Collection<VertexTraffic> traffic, Set<String> movable, Settings settings) {
+        var placement = new Placement(nodeByVertexId, nodes, traffic);
+        var before = placement.crossNode();
+        var moves = new LinkedHashMap<String, Address>();
+        placement.balance(movable, settings, moves);
+        placement.colocate(movable, settings, moves);
+        var movedTo = new LinkedHashMap<String, String>();
+        moves.forEach((id, node) -> movedTo.put(id, node.toString()));
+        var report = new Report(Instant.now(), nodes.size(), placement.traffic(), before, placement.crossNode(),
+                movedTo);
+        return new Plan(moves, report);
+    }
+
+    private double load(String vertexId) {
+        return Math.max(MIN_LOAD, loadByVertexId.getOrDefault(vertexId, 0.0));
+    }
+
+    private double capacity(Settings settings) {
+        var total = loadByNode.values().stream().mapToDouble(Double::doubleValue).sum();
+        return total / Math.max(1, loadByNode.size()) * settings.imbalance();
+    }
+
+    /**
+     * The messages per second between the vertex and its neighbours on the node.
+     */
+    private double affinity(String vertexId, Address node) {
+        var traffic = 0.0;
+        for (Map.Entry<String, Double> neighbour : trafficByNeighbour.getOrDefault(vertexId, Map.of()).entrySet()) {
+            if (node.equals(nodeByVertexId.get(neighbour.getKey()))) {
+                traffic += neighbour.getValue();
+            }
+        }
+        return traffic;
+    }
+
+    private double traffic() {
+        return trafficByNeighbour.values().stream()
+                .flatMap(neighbours -> neighbours.values().stream())
+                .mapToDouble(Double::doubleValue)
+                .sum() / 2;
+    }
+
+    private double crossNode() {
+        var traffic = 0.0;
+        for (Map.Entry<String, Map<String, Double>> vertex : trafficByNeighbour.entrySet()) {
+            var node = nodeByVertexId.get(vertex.getKey());
+            for (Map.Entry<String, Double> neighbour : vertex.getValue().entrySet()) {
+                if (!node.equals(nodeByVertexId.get(neighbour.getKey()))) {
+                    traffic += neighbour.getValue();
+                }
+            }
+        }
+        return traffic / 2;
+    }
+
+    private void move(String vertexId, Address node, Map<String, Address> moves) {
+        var load = load(vertexId);
+        loadByNode.merge(nodeByVertexId.get(vertexId), -load, Double::sum);
+        loadByNode.merge(node, load, Double::sum);
+        nodeByVertexId.put(vertexId, node);
+        moves.put(vertexId, node);
+    }
+
+    /**
+     * Moves vertices from the busiest node to the idlest one while the busiest is over capacity, picking the vertex
+     * that leaves the least traffic behind and that leaves the idlest node less busy than the busiest was.
+     */
+    private void balance(Set<String> movable, Settings settings, Map<String, Address> moves) {
+        var capacity = capacity(settings);
+        while (moves.size() < settings.maxMoves() && loadByNode.size() > 1) {
+            var busiest = busiest();
+            var idlest = idlest();
+            var busiestLoad = loadByNode.get(busiest);
+            if (busiestLoad <= capacity) {
+                return;
+            }
+            String best = null;
+            var bestGain = Double.NEGATIVE_INFINITY;
+            for (String id : vertices(busiest, movable, moves.keySet())) {
+                var gain = affinity(id, idlest) - affinity(id, busiest);
+                if (loadByNode.get(idlest) + load(id) < busiestLoad && gain > bestGain) {
+                    best = id;
+                    bestGain = gain;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            move(best, idlest, moves);
+        }
+    }
+
+    /**
+     * Moves the vertex that takes the most traffic off the network to a node with room for it, or swaps two vertices
+     * on different nodes when neither node has room, until no move or swap takes off enough.
+     */
+    private void colocate(Set<String> movable, Settings settings, Map<String, Address> moves) {
+        var capacity = capacity(settings);
+        while (moves.size() < settings.maxMoves()) {
+            var candidates = nodeByVertexId.keySet().stream()
+                    .filter(id -> movable.contains(id) && !moves.containsKey(id))
+                    .sorted()
+                    .collect(Collectors.toList());
+            String best = null;
+            Address bestNode = null;
+            String bestSwap = null;
+            var bestGain = settings.minGain();
+            for (String id : candidates) {
+                var current = nodeByVertexId.get(id);
+                for (Address node : loadByNode.keySet()) {
+                    if (current.equals(node) || loadByNode.get(node) + load(id) > capacity) {
+                        continue;
+                    }
+                    var gain = affinity(id, node) - affinity(id, current);
+                    if (gain >= bestGain) {
+                        best = id;
+                        bestNode = node;
+                        bestSwap = null;
+                        bestGain = gain;
+                    }
+                }
+                if (moves.size() + 2 > settings.maxMoves()) {
+                    continue;
+                }
+                for (String other : candidates) {
+                    var otherNode = nodeByVertexId.get(other);
+                    if (other.compareTo(id) <= 0 || current.equals(otherNode)
+                            || !fitsSwap(id, other, capacity)) {
+                        continue;
+                    }
+                    // Two neighbours that swap nodes are still apart.
+                    var between = trafficByNeighbour.getOrDefault(id, Map.of()).getOrDefault(other, 0.0);
+                    var gain = affinity(id, otherNode) - affinity(id, current)
+                            + affinity(other, current) - affinity(other, otherNode) - 2 * between;
+                    if (gain >= bestGain) {
+                        best = id;
+                        bestNode = otherNode;
+                        bestSwap = other;
+                        bestGain = gain;
+                    }
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            if (bestSwap != null) {
+                move(bestSwap, nodeByVertexId.get(best), moves);
+            }
+            move(best, bestNode, moves);
+        }
+    }
+
+    /**
+     * A swap may not take either node over capacity, unless it leaves the busier of the two less busy than before.
+     */
+    private boolean fitsSwap(String first, String second, double capacity) {
+        var firstNode = loadByNode.get(nodeByVertexId.get(first));
+        var secondNode = loadByNode.get(nodeByVertexId.get(second));
+        var firstAfter = firstNode - load(first) + load(second);
+        var secondAfter = secondNode - load(second) + load(first);
+        return Math.max(firstAfter, secondAfter) <= Math.max(capacity, Math.max(firstNode, secondNode));
+    }
+
+    private List<String> vertices(Address node, Set<String> movable, Set<String> moved) {
+        return nodeByVertexId.entrySet().stream()
+                .filter(entry -> entry.getValue().equals(node) && movable.contains(entry.getKey())
+                        && !moved.contains(entry.getKey()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private Address busiest() {
+        return loadByNode.entrySet().stream().max(Map.Entry.comparingByValue()).orElseThrow().getKey();
+    }
+
+    private Address idlest() {
+        return loadByNode.entrySet().stream().min(Map.Entry.comparingByValue()).orElseThrow().getKey();
+    }
+
+    /**
+     * The node for a new vertex: the one with the fewest vertices.
+     */
+    public static Address initial(Map<String, Address> nodeByVertexId, Collection<Address> nodes) {
+        var counts = new HashMap<Address, Integer>();
+        nodes.forEach(node -> counts.put(node, 0));
+        nodeByVertexId.values().forEach(node -> counts.computeIfPresent(node, (key, count) -> count + 1));
+        return counts.entrySet().stream()
+                .min(Map.Entry.<Address, Integer>comparingByValue().thenComparing(entry -> entry.getKey().toString()))
+                .map(Map.Entry::getKey)
+                .orElse(null);
+    }
+}
@@ -0,0 +1,227 @@
+package com.mvanniekerk.akka.compute.cluster;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.sharding.external.ExternalShardAllocationStrategy;
+import akka.cluster.sharding.typed.ShardingEnvelope;
+import akka.cluster.sharding.typed.ShardingMessageExtractor;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.util.Timeout;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mvanniekerk.akka.compute.control.Control;
+import com.mvanniekerk.akka.compute.dispatch.VertexDispatchers;
+import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.CoreControl;
+import com.mvanniekerk.akka.compute.vertex.VertexDescription;
+import com.mvanniekerk.akka.compute.vertex.VertexMessage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A vertex of a cluster: an entity of cluster sharding, keyed by the vertex id, that runs the {@link Core} of the
+ * vertex as its child. The entity announces itself to {@link Control}, which answers with the vertex and its edges,
+ * is told the actor of the Core in return and connects the sources of the vertex. Vertices and ingress send to the
+ * Core directly, so that the messages between vertices do not pass through sharding. When the entity is moved to
+ * another node, or its node leaves the cluster, Control starts it again.
+ * <p>
+ * Every vertex is a shard of its own, and runs on the node that {@link Placement} chose for it. To move, the Core
+ * hands its state to Control and stops, after which sharding moves the entity to its new node, where it starts again
+ * with that state.
+ */
+public class VertexEntity extends AbstractBehavior<VertexEntity.Command> {
+    public static final EntityTypeKey<Command> TYPE_KEY = EntityTypeKey.create(Command.class, "Vertex");
+
+    public interface Command {}
+
+    /**
+     * Starts the entity, or has a running entity announce itself again.
+     */
+    public record Start() implements Command {}
+    /**
+     * @param connects the edges to the targets that run, connected before the Core sends anything
+     * @param state    the state the vertex had on the node it moved from, or null
+     * @param held     the messages its paused edges held on the node it moved from, by target
+     */
+    public record Run(VertexDescription vertex, List<CoreControl.Connect> connects, JsonNode state,
+                      Map<String, List<JsonNode>> held) implements Command {}
+    public record Stop() implements Command {}
+    /**
+     * Stops the entity when sharding hands it over to another node, or once it has passivated itself.
+     */
+    public record Handoff() implements Command {}
+    private record CoreStopped() implements Command {}
+    private record HandoffTimedOut() implements Command {}
+
+    /**
+     * Called on every node of the cluster.
+     */
+    public static void init(ActorSystem<?> system) {
+        var timeout = system.settings().config().getDuration("vertex.cluster.placement.handoff-timeout");
+        ClusterSharding.get(system).init(Entity.of(TYPE_KEY, context ->
+                        create(context.getEntityId(), context.getShard(), timeout))
+                .withMessageExtractor(new ShardPerEntity())
+                .withAllocationStrategy(new ExternalShardAllocationStrategy(system, TYPE_KEY.name(),
+                        Timeout.create(Duration.ofSeconds(5))))
+                .withStopMessage(new Handoff()));
+    }
+
+    /**
+     * Gives every vertex a shard of its own, so that each can be placed on a node of its own choosing.
+     */
+    private static class ShardPerEntity extends ShardingMessageExtractor<ShardingEnvelope<Command>, Command> {
+        @Override
+        public String entityId(ShardingEnvelope<Command> envelope) {
+            return envelope.entityId();
+        }
+
+        @Override
+        public String shardId(String entityId) {
+            return entityId;
+        }
+
+        @Override
+        public Command unwrapMessage(ShardingEnvelope<Command> envelope) {
+            return envelope.message();
+        }
+    }
+
+    private static Behavior<Command> create(String id, ActorRef<ClusterSharding.ShardCommand> shard,
+                                            Duration handoffTimeout) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new VertexEntity(context, timers, id, shard, handoffTimeout)));
+    }
+
+    private final String id;
+    private final ActorRef<ClusterSharding.ShardCommand> shard;
+    private final ActorRef<Control.Message> control;
+    private final TimerScheduler<Command> timers;
+    private final Duration handoffTimeout;
+    private ActorRef<VertexMessage> core;
+    private VertexDescription running;
+    private boolean stopping = false;
+    private boolean startAfterStop = false;
+    private boolean moved = false;
+
+    private VertexEntity(ActorContext<Command> context, TimerScheduler<Command> timers, String id,
+                         ActorRef<ClusterSharding.ShardCommand> shard, Duration handoffTimeout) {
+        super(context);
+        this.id = id;
+        this.shard = shard;
+        this.timers = timers;
+        this.handoffTimeout = handoffTimeout;
+        this.control = Control.singleton(context.getSystem());
+        announce();
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Start.class, msg -> {
+                    if (stopping) {
+                        startAfterStop = true;
+                    } else {
+                        announce();
+                    }
+                    return this;
+                })
+                .onMessage(Run.class, msg -> {
+                    if (!stopping) {
+                        run(msg);
+                    }
+                    return this;
+                })
+                .onMessage(Stop.class, msg -> {
+                    if (core == null) {
+                        passivate();
+                    } else {
+                        // The Core flushes its edges before it stops.
+                        stopping = true;
+                        core.tell(new CoreControl.Stop());
+                    }
+                    return this;
+                })
+                .onMessage(CoreStopped.class, msg -> {
+                    core = null;
+                    running = null;
+                    if (stopping && startAfterStop) {
+                        // Deleted and created again, for example with another deployment.
+                        stopping = false;
+                        startAfterStop = false;
+                        announce();
+                    } else if (stopping) {
+                        passivate();
+                    } else {
+                        // The Core handed its state to Control, and the entity waits for sharding to move it.
+                        moved = true;
+                        timers.startSingleTimer(new HandoffTimedOut(), handoffTimeout);
+                    }
+                    return this;
+                })
+                .onMessage(HandoffTimedOut.class, msg -> {
+                    if (moved) {
+                        getContext().getLog().warn("Vertex {} was not moved within {}, starting it here again", id,
+                                handoffTimeout);
+                        moved = false;
+                        announce();
+                    }
+                    return this;
+                })
+                .onMessage(Handoff.class, msg -> {
+                    if (moved) {
+                        // Sharding holds on to the message until the entity runs on its new node.
+                        ClusterSharding.get(getContext().getSystem()).entityRefFor(TYPE_KEY, id).tell(new Start());
+                    }
+                    return Behaviors.stopped();
+                })
+                .build();
+    }
+
+    private void announce() {
+        control.tell(new Control.VertexStarted(id, getContext().getSelf()));
+    }
+
+    private void passivate() {
+        shard.tell(new ClusterSharding.Passivate<>(getContext().getSelf()));
+    }
+
+    /**
+     * Starts the Core, or brings a running one up to date when the entity announced itself again.
+     */
+    private void run(Run run) {
+        var vertex = run.vertex();
+        moved = false;
+        timers.cancel(new HandoffTimedOut());
+        if (core == null) {
+            var config = getContext().getSystem().settings().config();
+            var props = VertexDispatchers.props(config, VertexDispatchers.resolve(vertex.deployment(), vertex.code()))
+                    .withNext(MailboxSelector.fromConfig("vertex.mailbox"));
+            core = getContext().spawnAnonymous(
+                    Core.create(vertex.id(), vertex.name(), vertex.code(), vertex.deployment(), props, run.connects(),
+                            run.state(), run.held()), props);
+            getContext().watchWith(core, new CoreStopped());
+        } else {
+            var ignore = getContext().getSystem().<VertexDescription>ignoreRef();
+            if (!Objects.equals(vertex.name(), running.name())) {
+                core.tell(new CoreControl.LoadName(ignore, vertex.name()));
+            }
+            if (!Objects.equals(vertex.code(), running.code())) {
+                core.tell(new CoreControl.LoadCode(ignore, vertex.code()));
+            }
+            run.connects().forEach(core::tell);
+        }
+        running = vertex;
+        control.tell(new Control.VertexRunning(id, core));
+    }
+}
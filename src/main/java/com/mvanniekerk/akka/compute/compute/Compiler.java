@@ -2,8 +2,23 @@ package com.mvanniekerk.akka.compute.compute;
 
 import com.mvanniekerk.akka.compute.vertex.Core;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 public interface Compiler {
     Function<Core, ComputeCore> compile(String code);
+
+    /**
+     * Compiles without blocking the caller. Compilers that are slow do their work on the executor; the default
+     * compiles right away.
+     */
+    default CompletionStage<Function<Core, ComputeCore>> compileAsync(String code, Executor executor) {
+        try {
+            return CompletableFuture.completedFuture(compile(code));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
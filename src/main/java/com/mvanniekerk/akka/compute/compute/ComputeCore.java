@@ -1,49 +1,143 @@
 package com.mvanniekerk.akka.compute.compute;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.mvanniekerk.akka.compute.util.Codecs;
+import com.mvanniekerk.akka.compute.vertex.Batching;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 import java.time.Duration;
+import java.util.List;
 
 public abstract class ComputeCore {
     // TODO: You are recreating an actor, consider just using an actor!!
 
     private final Core core;
-    private final ObjectMapper objectMapper;
+    private boolean unhandledLogged = false;
 
-    public abstract void receive(JsonNode message);
+    /**
+     * Override this, or {@link #receive(Payload)}, in a vertex that has sources. A vertex that overrides neither drops
+     * every message, which is logged as a warning once.
+     */
+    public void receive(JsonNode message) {
+        if (!unhandledLogged) {
+            unhandledLogged = true;
+            log(CoreLog.Level.WARN, "{} does not override receive, so it drops every message it receives",
+                    getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Receives a message without converting it to a {@link JsonNode} first. Override this instead of
+     * {@link #receive(JsonNode)} to consume the objects sent by upstream vertices directly.
+     */
+    public void receive(Payload message) {
+        receive(message.json());
+    }
 
     public ComputeCore(Core consumer) {
-        this.objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
         this.core = consumer;
     }
 
+    /**
+     * Receives a batch of messages sent over a batching edge, in the order they were sent. Override this to handle
+     * the whole batch at once.
+     */
+    public void receiveBatch(List<Payload> messages) {
+        messages.forEach(this::receive);
+    }
+
     public void onStop() {
         // No default behaviour.
     }
 
+    /**
+     * The state to hand over to the new instance when new code is loaded into the vertex, or when the vertex moves to
+     * another node of a cluster, or null for none. The state is converted to JSON, so it should be a plain value such
+     * as a record.
+     */
+    public Object snapshotState() {
+        return null;
+    }
+
+    /**
+     * Takes over the state of the previous instance, after the constructor ran. The previous code may have been a
+     * different class, so convert the state with care.
+     */
+    public void restoreState(JsonNode state) {
+        // No default behaviour.
+    }
+
     public final <T> T convert(JsonNode message, Class<T> type) {
-        try {
-            return objectMapper.treeToValue(message, type);
-        } catch (JsonProcessingException e) {
-            throw new IllegalArgumentException(e);
-        }
+        return Codecs.treeToValue(message, type);
     }
 
-    public final void send(JsonNode message) {
+    public final <T> T convert(Payload message, Class<T> type) {
+        return message.as(type);
+    }
+
+    public final void send(Payload message) {
         core.send(message);
     }
 
+    public final void send(JsonNode message) {
+        core.send(Payload.of(message));
+    }
+
     public final void send(Object message) {
-        core.send(objectMapper.valueToTree(message));
+        core.send(Payload.of(message));
+    }
+
+    /**
+     * Collects outgoing messages into batches on every edge that does not configure its own batching. Throws an
+     * {@link IllegalArgumentException} when the size is below one or the linger time is negative.
+     */
+    public final void batchOutput(int maxSize, Duration linger) {
+        core.setOutputBatching(new Batching(maxSize, linger.toMillis()));
     }
 
     public final void log(String message) {
-        core.log(message);
+        log(CoreLog.Level.INFO, message);
+    }
+
+    public final boolean isLogEnabled(CoreLog.Level level) {
+        return core.isLogEnabled(level);
+    }
+
+    /**
+     * Skips the lines below this level, until new code is loaded. The default level is {@code vertex.logging.level}.
+     */
+    public final void setLogLevel(CoreLog.Level level) {
+        core.setLogLevel(level);
+    }
+
+    public final void log(CoreLog.Level level, String message) {
+        if (core.isLogEnabled(level)) {
+            core.log(level, message, null);
+        }
+    }
+
+    /**
+     * Logs the format with every {@code {}} replaced by the next argument. The line is only formatted when somebody
+     * reads it, so the arguments should not change afterwards.
+     */
+    public final void log(CoreLog.Level level, String format, Object argument) {
+        if (core.isLogEnabled(level)) {
+            core.log(level, format, new Object[]{argument});
+        }
+    }
+
+    public final void log(CoreLog.Level level, String format, Object first, Object second) {
+        if (core.isLogEnabled(level)) {
+            core.log(level, format, new Object[]{first, second});
+        }
+    }
+
+    public final void log(CoreLog.Level level, String format, Object... arguments) {
+        if (core.isLogEnabled(level)) {
+            core.log(level, format, arguments);
+        }
     }
 
     public final void schedulePeriodic(String key, Duration interval, Runnable runnable) {
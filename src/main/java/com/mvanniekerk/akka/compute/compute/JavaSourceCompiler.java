@@ -0,0 +1,264 @@
+package com.mvanniekerk.akka.compute.compute;
+
+import com.mvanniekerk.akka.compute.vertex.Core;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles code that is the Java source of a {@link ComputeCore} subclass in memory, with {@code javax.tools}. Any
+ * other code goes to the fallback compiler. Compiled classes are cached by the SHA-256 of their source, so that many
+ * vertices with the same source compile it once; vertices that ask while it compiles wait for the same result. The
+ * cache keeps the most recently used classes, up to {@link #MAX_CACHED_CLASSES}, and forgets failed compilations once
+ * the vertices that waited for them have their error. The class needs a public constructor that takes a
+ * {@link Core}, or a {@link Core} and a {@code String[]}.
+ */
+public class JavaSourceCompiler implements Compiler {
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+    private static final Pattern CLASS = Pattern.compile("\\bclass\\s+(\\w+)");
+
+    /**
+     * @param compileSeconds the time spent compiling, summed over all compilations
+     * @param hitRate        the fraction of the requests for source code that were served from the cache
+     */
+    public record Stats(long compilations, long failures, long cacheHits, long cachedClasses, double compileSeconds,
+                        double hitRate) {}
+
+    /**
+     * Each cached class keeps its own class loader alive, so the cache is bounded.
+     */
+    static final int MAX_CACHED_CLASSES = 256;
+
+    private static final JavaSourceCompiler SHARED = new JavaSourceCompiler(new StaticClassNameCompiler());
+
+    private final Compiler fallback;
+    private final Map<String, CompletableFuture<Function<Core, ComputeCore>>> cache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CompletableFuture<Function<Core, ComputeCore>>> eldest) {
+                    return size() > MAX_CACHED_CLASSES;
+                }
+            };
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+
+    public JavaSourceCompiler(Compiler fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * The compiler of all vertices, which falls back to the {@link StaticClassNameCompiler}.
+     */
+    public static JavaSourceCompiler shared() {
+        return SHARED;
+    }
+
+    public static boolean isSource(String code) {
+        return code != null && code.contains("{") && CLASS.matcher(code).find();
+    }
+
+    @Override
+    public Function<Core, ComputeCore> compile(String code) {
+        try {
+            return compileAsync(code, Runnable::run).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    @Override
+    public CompletionStage<Function<Core, ComputeCore>> compileAsync(String code, Executor executor) {
+        if (!isSource(code)) {
+            return fallback.compileAsync(code, executor);
+        }
+        requests.incrementAndGet();
+        var hash = hash(code);
+        CompletableFuture<Function<Core, ComputeCore>> compiling;
+        synchronized (cache) {
+            compiling = cache.get(hash);
+            if (compiling != null) {
+                return compiling;
+            }
+            compiling = new CompletableFuture<>();
+            cache.put(hash, compiling);
+        }
+        // Compiling happens outside the lock, since the executor may run it on this thread.
+        var result = compiling;
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(build(code));
+                } catch (RuntimeException | Error e) {
+                    // The vertices that wait share the failure, but the next request compiles again.
+                    forget(hash, result);
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            forget(hash, result);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void forget(String hash, CompletableFuture<Function<Core, ComputeCore>> compiling) {
+        synchronized (cache) {
+            cache.remove(hash, compiling);
+        }
+    }
+
+    public Stats stats() {
+        var requested = requests.get();
+        var compiled = compilations.get();
+        var hits = Math.max(0, requested - compiled);
+        int cached;
+        synchronized (cache) {
+            cached = cache.size();
+        }
+        return new Stats(compiled, failures.get(), hits, cached, compileNanos.get() / 1e9,
+                requested == 0 ? 0 : (double) hits / requested);
+    }
+
+    private Function<Core, ComputeCore> build(String source) {
+        compilations.incrementAndGet();
+        var start = System.nanoTime();
+        try {
+            var constructor = constructor(load(source));
+            var withArguments = constructor.getParameterCount() == 2;
+            return core -> {
+                try {
+                    return withArguments
+                            ? constructor.newInstance(core, new String[0])
+                            : constructor.newInstance(core);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            compileNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static Class<?> load(String source) {
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available, run on a JDK");
+        }
+        var packageMatcher = PACKAGE.matcher(source);
+        var classMatcher = CLASS.matcher(source);
+        classMatcher.find();
+        var className = (packageMatcher.find() ? packageMatcher.group(1) + "." : "") + classMatcher.group(1);
+
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        var classFiles = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+        var sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/')
+                + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        var options = List.of("-classpath", System.getProperty("java.class.path"), "-proc:none");
+        boolean success;
+        // The standard file manager keeps the jars of the classpath open until it is closed.
+        try (var fileManager = new ForwardingJavaFileManager<>(compiler.getStandardFileManager(diagnostics, null,
+                StandardCharsets.UTF_8)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                var bytes = new ByteArrayOutputStream();
+                classFiles.put(name, bytes);
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        }) {
+            success = compiler.getTask(null, fileManager, diagnostics, options, null, List.of(sourceFile)).call();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!success) {
+            var errors = new StringBuilder();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                errors.append("line ").append(diagnostic.getLineNumber()).append(": ")
+                        .append(diagnostic.getMessage(null)).append('\n');
+            }
+            throw new IllegalArgumentException("Compilation of " + className + " failed:\n" + errors);
+        }
+
+        var loader = new ClassLoader(JavaSourceCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                var bytes = classFiles.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                var array = bytes.toByteArray();
+                return defineClass(name, array, 0, array.length);
+            }
+        };
+        try {
+            return loader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("The source does not define " + className, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends ComputeCore> constructor(Class<?> type) {
+        if (!ComputeCore.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(type.getName() + " does not extend ComputeCore");
+        }
+        try {
+            return (Constructor<? extends ComputeCore>) type.getConstructor(Core.class, String[].class);
+        } catch (NoSuchMethodException e) {
+            try {
+                return (Constructor<? extends ComputeCore>) type.getConstructor(Core.class);
+            } catch (NoSuchMethodException noConstructor) {
+                throw new IllegalArgumentException(type.getName() + " has no public constructor taking a Core");
+            }
+        }
+    }
+
+    private static String hash(String source) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
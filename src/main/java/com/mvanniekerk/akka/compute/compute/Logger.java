@@ -1,7 +1,8 @@
 package com.mvanniekerk.akka.compute.compute;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 public class Logger extends ComputeCore {
 
@@ -10,8 +11,8 @@ public class Logger extends ComputeCore {
     }
 
     @Override
-    public void receive(JsonNode message) {
-       log(message.toString());
+    public void receive(Payload message) {
+       log(CoreLog.Level.INFO, "{}", message);
        send(message);
     }
 
@@ -2,12 +2,14 @@ package com.mvanniekerk.akka.compute.compute;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
 
 import java.time.Duration;
 import java.time.ZonedDateTime;
 
 public class NumberSource extends ComputeCore {
-    private record NumberMessage(long number, ZonedDateTime sentTime) {}
+    record NumberMessage(long number, ZonedDateTime sentTime) {}
+    record State(long number) {}
 
     private long number = 0;
     private double rate = 1.0;
@@ -19,11 +21,21 @@ public class NumberSource extends ComputeCore {
         }
         schedulePeriodic("numbers", Duration.ofMillis((long) (1000 * rate)), () -> {
             ZonedDateTime now = ZonedDateTime.now();
-            log("Generated number " + number);
+            log(CoreLog.Level.DEBUG, "Generated number {}", number);
             send(new NumberMessage(number++, now));
         });
     }
 
+    @Override
+    public Object snapshotState() {
+        return new State(number);
+    }
+
+    @Override
+    public void restoreState(JsonNode state) {
+        number = convert(state, State.class).number();
+    }
+
     @Override
     public void receive(JsonNode message) {
         // NOOP
@@ -2,6 +2,7 @@ package com.mvanniekerk.akka.compute.compute;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 public class PrimeClassifier extends ComputeCore {
 
@@ -12,14 +13,26 @@ public class PrimeClassifier extends ComputeCore {
         log("Starting the prime classifier");
     }
 
+    @Override
+    public void receive(Payload message) {
+        if (message.value() instanceof NumberSource.NumberMessage numberMessage) {
+            classify(numberMessage.number());
+        } else {
+            receive(message.json());
+        }
+    }
+
     @Override
     public void receive(JsonNode message) {
         var numberNode = message.get("number");
         if (numberNode != null && numberNode.isLong()) {
-            var number = numberNode.asLong();
-            if (isPrime(number)) {
-                send(new PrimeMessage(number));
-            }
+            classify(numberNode.asLong());
+        }
+    }
+
+    private void classify(long number) {
+        if (isPrime(number)) {
+            send(new PrimeMessage(number));
         }
     }
 
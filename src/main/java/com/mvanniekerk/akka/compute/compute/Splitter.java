@@ -1,7 +1,6 @@
 package com.mvanniekerk.akka.compute.compute;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mvanniekerk.akka.compute.vertex.Core;
 
 import java.util.Arrays;
@@ -9,8 +8,6 @@ import java.util.List;
 
 public class Splitter extends ComputeCore {
 
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-
     public Splitter(Core consumer) {
         super(consumer);
     }
@@ -19,7 +16,7 @@ public class Splitter extends ComputeCore {
     public void receive(JsonNode message) {
         String text = message.asText();
         List<String> lines = Arrays.asList(text.split("\n"));
-        lines.forEach(line -> this.send(OBJECT_MAPPER.valueToTree(line)));
+        lines.forEach(this::send);
     }
 
 }
@@ -30,7 +30,13 @@ public class StaticClassNameCompiler implements Compiler {
 
     @Override
     public Function<Core, ComputeCore> compile(String code) {
-        var words = code.split(" ");
+        // Words starting with @ are directives for the runtime, such as the dispatcher, and not arguments.
+        var words = Arrays.stream(code.split(" "))
+                .filter(word -> !word.startsWith("@"))
+                .toArray(String[]::new);
+        if (words.length == 0) {
+            return NoopCompute::new;
+        }
         var rest = Arrays.copyOfRange(words, 1, words.length);
         var computeBuilder = computeBuilders.get(words[0]);
         if (computeBuilder == null) {
@@ -1,8 +1,8 @@
 package com.mvanniekerk.akka.compute.compute.synth;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.compute.ComputeCore;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -18,7 +18,7 @@ public class NoteEqAggregator extends ComputeCore {
     }
 
     @Override
-    public void receive(JsonNode message) {
+    public void receive(Payload message) {
         var soundBuffer = convert(message, SoundBuffer.class);
         if (soundBuffer.frameNr() != frameNr) {
             flush();
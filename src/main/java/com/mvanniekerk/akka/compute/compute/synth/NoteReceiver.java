@@ -15,6 +15,7 @@ public class NoteReceiver extends ComputeCore {
     private record Note(int midiNumber, long startFrame, long endFrame, boolean isPressed) {}
     record Instruction(int midiNumber, double startVolume, double endVolume) {}
     record NoteInstructions(long frameNr, List<Instruction> instructions) {}
+    private record State(long frameNr, List<Note> notes) {}
 
     private final Map<Integer, Note> notesByMidi = new HashMap<>();
 
@@ -59,6 +60,18 @@ public class NoteReceiver extends ComputeCore {
         return new Instruction(note.midiNumber, startVolume, endVolume);
     }
 
+    @Override
+    public Object snapshotState() {
+        return new State(frameNr, List.copyOf(notesByMidi.values()));
+    }
+
+    @Override
+    public void restoreState(JsonNode state) {
+        var restored = convert(state, State.class);
+        frameNr = restored.frameNr();
+        restored.notes().forEach(note -> notesByMidi.put(note.midiNumber(), note));
+    }
+
     @Override
     public void receive(JsonNode message) {
         var noteAction = convert(message, NoteAction.class);
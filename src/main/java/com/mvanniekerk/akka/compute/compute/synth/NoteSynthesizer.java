@@ -1,8 +1,8 @@
 package com.mvanniekerk.akka.compute.compute.synth;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.compute.ComputeCore;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 import java.util.ArrayList;
 
@@ -22,7 +22,7 @@ public class NoteSynthesizer extends ComputeCore {
     }
 
     @Override
-    public void receive(JsonNode message) {
+    public void receive(Payload message) {
         var noteInstructions = convert(message, NoteReceiver.NoteInstructions.class);
 
         var result = new ArrayList<double[]>();
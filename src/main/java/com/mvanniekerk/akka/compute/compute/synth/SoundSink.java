@@ -1,8 +1,8 @@
 package com.mvanniekerk.akka.compute.compute.synth;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.compute.ComputeCore;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -24,7 +24,7 @@ public class SoundSink extends ComputeCore {
     }
 
     @Override
-    public void receive(JsonNode message) {
+    public void receive(Payload message) {
         var soundBuffer = convert(message, SoundBuffer.class);
         if (!started && soundBuffer.frameNr() > 0) {
             new Thread(player).start();
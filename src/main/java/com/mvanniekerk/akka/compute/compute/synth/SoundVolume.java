@@ -1,8 +1,8 @@
 package com.mvanniekerk.akka.compute.compute.synth;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.compute.ComputeCore;
 import com.mvanniekerk.akka.compute.vertex.Core;
+import com.mvanniekerk.akka.compute.vertex.Payload;
 
 public class SoundVolume extends ComputeCore {
 
@@ -16,7 +16,7 @@ public class SoundVolume extends ComputeCore {
     }
 
     @Override
-    public void receive(JsonNode message) {
+    public void receive(Payload message) {
         var soundBuffer = convert(message, SoundBuffer.class);
         var outArr = multArray(volume, soundBuffer.buffer());
         send(new SoundBuffer(soundBuffer.frameNr(), outArr));
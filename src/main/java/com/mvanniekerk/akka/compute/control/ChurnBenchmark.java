@@ -0,0 +1,104 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import com.mvanniekerk.akka.compute.control.graph.Edge;
+import com.mvanniekerk.akka.compute.vertex.VertexDescription;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Measures how fast the topology of a large graph can change. For every graph size, it loads a graph of idle vertices
+ * with a few random edges each, and then replaces vertices one after the other: it deletes a random vertex, creates a
+ * new one and links it to random vertices. Since a change only touches the vertices involved, the rate should hardly
+ * depend on the size of the graph.
+ * <p>
+ * Arguments: the graph sizes (1000,10000,50000), the edges per vertex (2) and the vertices to replace per size (2000).
+ */
+public final class ChurnBenchmark {
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+
+    private ChurnBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var sizes = args.length > 0 ? args[0] : "1000,10000,50000";
+        var degree = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        var replacements = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        var results = new ArrayList<String>();
+        for (String size : sizes.split(",")) {
+            var vertices = Integer.parseInt(size.trim());
+            var rate = run(vertices, degree, replacements);
+            results.add(String.format("%10d %10d %15.0f %15.3f", vertices, vertices * degree, rate, 1000 / rate));
+            System.out.printf("%d vertices: %.0f replacements per second%n", vertices, rate);
+        }
+        System.out.printf("%n%10s %10s %15s %15s%n", "vertices", "edges", "replaced/s", "ms/replace");
+        results.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    private static double run(int size, int degree, int replacements) throws Exception {
+        var config = ConfigFactory.parseString(String.join("\n",
+                        "vertex.journal.enabled = false",
+                        "vertex.log-store.enabled = false"))
+                .withFallback(ConfigFactory.load());
+        var system = ActorSystem.create(Control.create(), "control", config);
+        try {
+            var random = new Random(size);
+            var ids = new ArrayList<String>(size);
+            var vertices = new ArrayList<VertexDescription>(size);
+            var edges = new ArrayList<Edge>(size * degree);
+            for (int i = 0; i < size; i++) {
+                ids.add("vertex-" + i);
+                vertices.add(new VertexDescription("vertex-" + i, "Vertex" + i, "NoopCompute", null));
+            }
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < degree; j++) {
+                    edges.add(new Edge("edge-" + i + "-" + j, ids.get(i), ids.get(random.nextInt(size)), null));
+                }
+            }
+            var start = System.nanoTime();
+            var graph = new SystemDescription(vertices, edges);
+            ChurnBenchmark.<Control.LoadStateReply>ask(system, replyTo -> new Control.LoadStateRequest(replyTo, graph));
+            System.out.printf("%d vertices: graph loaded after %d ms%n", size, (System.nanoTime() - start) / 1_000_000);
+
+            start = System.nanoTime();
+            for (int i = 0; i < replacements; i++) {
+                // Swapping the last id into the slot of the deleted one keeps the removal constant time.
+                var index = random.nextInt(ids.size());
+                system.tell(new Control.DeleteVertex(ids.get(index)));
+                ids.set(index, ids.get(ids.size() - 1));
+                ids.remove(ids.size() - 1);
+                var created = ChurnBenchmark.<Control.VertexReply>ask(system,
+                        replyTo -> new Control.CreateVertex(replyTo, null, "NoopCompute", null));
+                var id = created.description().id();
+                for (int j = 0; j < degree; j++) {
+                    var target = ids.get(random.nextInt(ids.size()));
+                    ChurnBenchmark.<Control.LinkReply>ask(system,
+                            replyTo -> new Control.LinkVertices(replyTo, id, target, null));
+                }
+                ids.add(id);
+            }
+            // Control handles messages in order, so the deletes are done once it answers this.
+            ChurnBenchmark.<SystemDescription>ask(system, Control.GetStateRequest::new);
+            return replacements * 1e9 / (System.nanoTime() - start);
+        } finally {
+            system.terminate();
+            system.getWhenTerminated().toCompletableFuture().get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    private static <T> T ask(ActorSystem<Control.Message> system,
+                             Function<ActorRef<T>, Control.Message> message) throws Exception {
+        return AskPattern.ask(system, message::apply, TIMEOUT, system.scheduler())
+                .toCompletableFuture()
+                .get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,126 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWRegister;
+import akka.cluster.ddata.LWWRegisterKey;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+import com.mvanniekerk.akka.compute.cluster.Placement;
+import com.mvanniekerk.akka.compute.cluster.VertexEntity;
+import com.mvanniekerk.akka.compute.metrics.MetricsRegistry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The guardian of a node of a cluster, in place of {@link Control}. It starts the sharding of the vertices and the
+ * {@link SocketHub} of the node, keeps the {@link IngressRoutes} of the node up to date with the routes that Control
+ * replicates, and passes every other message on to Control, which runs on one of the nodes. It also reports the
+ * traffic of the vertices of the node to Control, and starts the vertices that Control places on the node.
+ */
+public class ClusterNode extends AbstractBehavior<Control.Message> {
+    public static final Key<LWWRegister<IngressRoutes.Table>> ROUTES = LWWRegisterKey.create("ingress-routes");
+    /**
+     * The graph, which Control replicates so that it survives the node Control runs on.
+     */
+    public static final Key<LWWRegister<SystemDescription>> GRAPH = LWWRegisterKey.create("graph");
+
+    /**
+     * Starts the entity of a vertex from this node, so that sharding places a vertex without a location here.
+     */
+    public record StartVertex(String id) implements Control.Message {}
+
+    private record RoutesReplicated(Replicator.SubscribeResponse<LWWRegister<IngressRoutes.Table>> response)
+            implements Control.Message {}
+    private record ReportTraffic() implements Control.Message {}
+
+    public static Behavior<Control.Message> create() {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers -> DistributedData.withReplicatorMessageAdapter(
+                (ReplicatorMessageAdapter<Control.Message, LWWRegister<IngressRoutes.Table>> replicator) -> {
+                    replicator.subscribe(ROUTES, RoutesReplicated::new);
+                    var interval = context.getSystem().settings().config()
+                            .getDuration("vertex.cluster.placement.report-interval");
+                    timers.startTimerWithFixedDelay(new ReportTraffic(), interval);
+                    return new ClusterNode(context);
+                })));
+    }
+
+    private final IngressRoutes routes;
+    private final MetricsRegistry metricsRegistry;
+    private final ActorRef<Control.Message> control;
+    private final ActorRef<SocketHub.Message> socketHub;
+
+    private ClusterNode(ActorContext<Control.Message> context) {
+        super(context);
+        VertexEntity.init(context.getSystem());
+        routes = IngressRoutes.get(context.getSystem());
+        metricsRegistry = MetricsRegistry.get(context.getSystem());
+        control = Control.singleton(context.getSystem());
+        socketHub = context.spawn(SocketHub.create(), "sockets");
+        // Control learns of the node before any vertex runs on it.
+        context.getSelf().tell(new ReportTraffic());
+    }
+
+    @Override
+    public Receive<Control.Message> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(RoutesReplicated.class, msg -> {
+                    if (msg.response() instanceof Replicator.Changed<LWWRegister<IngressRoutes.Table>> changed) {
+                        routes.publish(changed.get(ROUTES).getValue());
+                        socketHub.tell(new SocketHub.RoutesChanged());
+                    }
+                    return this;
+                })
+                .onMessage(ReportTraffic.class, msg -> {
+                    control.tell(new Control.NodeTraffic(Cluster.get(getContext().getSystem()).selfMember().address(),
+                            getContext().getSelf(), traffic()));
+                    return this;
+                })
+                .onMessage(StartVertex.class, msg -> {
+                    ClusterSharding.get(getContext().getSystem()).entityRefFor(VertexEntity.TYPE_KEY, msg.id())
+                            .tell(new VertexEntity.Start());
+                    return this;
+                })
+                .onAnyMessage(msg -> {
+                    if (msg instanceof SocketHub.Message socketMessage) {
+                        socketHub.tell(socketMessage);
+                    } else {
+                        control.tell(msg);
+                    }
+                    return this;
+                })
+                .build();
+    }
+
+    /**
+     * The traffic over the edges of the vertices of this node, and the share of a core each vertex uses, as last
+     * published by the vertices. The instances of a vertex are added up.
+     */
+    private List<Placement.VertexTraffic> traffic() {
+        var loadByVertexId = new HashMap<String, Double>();
+        var sentByVertexId = new HashMap<String, Map<String, Double>>();
+        for (MetricsRegistry.Sample sample : metricsRegistry.samples()) {
+            var metrics = sample.metrics();
+            // The median processing time is in microseconds.
+            var load = metrics.received().tenSeconds() * metrics.processing().p50() / 1_000_000;
+            loadByVertexId.merge(sample.vertexId(), load, Double::sum);
+            var sent = sentByVertexId.computeIfAbsent(sample.vertexId(), id -> new HashMap<>());
+            metrics.edges().forEach((targetId, edge) -> sent.merge(targetId, edge.sent().tenSeconds(), Double::sum));
+        }
+        return loadByVertexId.entrySet().stream()
+                .map(entry -> new Placement.VertexTraffic(entry.getKey(), entry.getValue(),
+                        sentByVertexId.get(entry.getKey())))
+                .collect(Collectors.toList());
+    }
+}
@@ -1,204 +1,960 @@
 package com.mvanniekerk.akka.compute.control;
 
+import akka.Done;
+import akka.actor.Address;
+import akka.actor.Cancellable;
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.*;
+import akka.cluster.ddata.LWWRegister;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import akka.cluster.sharding.external.ExternalShardAllocation;
+import akka.cluster.sharding.external.javadsl.ExternalShardAllocationClient;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.cluster.typed.ClusterSingleton;
+import akka.cluster.typed.SingletonActor;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.mvanniekerk.akka.compute.cluster.Placement;
+import com.mvanniekerk.akka.compute.cluster.VertexEntity;
 import com.mvanniekerk.akka.compute.control.graph.Edge;
+import com.mvanniekerk.akka.compute.control.graph.Edges;
+import com.mvanniekerk.akka.compute.dispatch.VertexDispatchers;
+import com.mvanniekerk.akka.compute.control.graph.LinearChains;
 import com.mvanniekerk.akka.compute.control.graph.Vertex;
 import com.mvanniekerk.akka.compute.control.graph.Vertices;
-import com.mvanniekerk.akka.compute.util.Aggregator;
 import com.mvanniekerk.akka.compute.vertex.*;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+/**
+ * Keeps the graph, and starts, links and stops its vertices. On its own, Control is the guardian of the actor system
+ * and runs every vertex as its child. In a cluster it runs on one node, as a cluster singleton, and the vertices are
+ * {@link VertexEntity}s spread over the nodes. Control then moves vertices between the nodes every placement interval,
+ * from the traffic the nodes report, as planned by {@link Placement}.
+ */
 public class Control extends AbstractBehavior<Control.Message> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Control.class);
     public interface Message {}
 
     // HTTP requests
     public record GetStateRequest(ActorRef<SystemDescription> replyTo) implements Message {}
-    public record LoadStateRequest(SystemDescription system) implements Message {}
-    public record CreateVertex(ActorRef<VertexReply> replyTo, String name, String code) implements Message {}
+    /**
+     * Changes the graph into the given one. Only the vertices and edges that differ are touched, and the reply comes
+     * once the code of every new or changed vertex is running.
+     */
+    public record LoadStateRequest(ActorRef<LoadStateReply> replyTo, SystemDescription system) implements Message {}
+    public record LoadStateReply(String status, SystemDescription system) {}
+    /**
+     * Loads the graph from the journal, or in a cluster from the graph that the previous Control replicated to every
+     * node. The reply comes once the code of all vertices is running.
+     */
+    public record Restore(ActorRef<Done> replyTo) implements Message {}
+    public record CreateVertex(ActorRef<VertexReply> replyTo, String name, String code,
+                               Deployment deployment) implements Message {}
     public record DeleteVertex(String id) implements Message {}
     public record VertexReply(String status, VertexDescription description) {}
     public record LoadCode(ActorRef<VertexDescription> replyTo, String id, String code) implements Message {}
     public record LoadName(ActorRef<VertexDescription> replyTo, String id, String name) implements Message {}
-    public record LinkVertices(ActorRef<LinkReply> replyTo, String from, String to) implements Message {}
+    public record LinkVertices(ActorRef<LinkReply> replyTo, String from, String to,
+                               Batching batching) implements Message {}
     public record LinkReply(String status, String id) {}
 
-    // WS push messages
-    public record RegisterControlWebSocket(String sessionId, ActorRef<WebSocketMessage> socket) implements Message {}
-    public record WrappedLog(CoreLog.LogMessage message) implements Message {}
-    public record LogSubscribe(String sessionId, String id) implements Message {}
+    // WS push messages, handled by the socket hub of the node
+    public record RegisterControlWebSocket(String sessionId, ActorRef<WebSocketMessage> socket)
+            implements Message, SocketHub.Message {}
+    public record LogSubscribe(String sessionId, String id) implements Message, SocketHub.Message {}
+    /**
+     * @param vertexIds the vertices to get the metrics of, or null for all vertices
+     */
+    public record MetricsSubscribe(String sessionId, Set<String> vertexIds) implements Message, SocketHub.Message {}
 
-    // metrics
-    public record RequestMetrics() implements Message {}
-    public record VertexMetricsAggregator(Map<String, CoreMetrics.Metrics> metricsByVertexId) implements Message {}
+    // Vertices of a cluster
+    public record VertexStarted(String id, ActorRef<VertexEntity.Command> entity) implements Message {}
+    public record VertexRunning(String id, ActorRef<VertexMessage> core) implements Message {}
+    /**
+     * The traffic of the vertices that run on a node, reported by its {@link ClusterNode} every report interval.
+     */
+    public record NodeTraffic(Address address, ActorRef<Message> node, List<Placement.VertexTraffic> vertices)
+            implements Message {}
+    /**
+     * Replies with the last placement rounds, oldest first. The cross-node traffic a round measures is the result of
+     * the moves of the round before.
+     */
+    public record GetPlacement(ActorRef<PlacementReply> replyTo) implements Message {}
+    public record PlacementReply(List<Placement.Report> rounds) {}
+    /**
+     * Plans the placement now, rather than at the next interval.
+     */
+    public record Rebalance() implements Message {}
 
-    public record ReceiveMsg(String name, JsonNode body) implements Message {}
+    private record CodeReady(String vertexId) implements Message {}
+    private record LoadTimedOut(long loadId) implements Message {}
+    private record VertexTerminated(String id, ActorRef<VertexMessage> core) implements Message {}
+    private record Migrated(CoreControl.Migrated migrated) implements Message {}
+    private record GraphRead(Replicator.GetResponse<LWWRegister<SystemDescription>> response, ActorRef<Done> replyTo)
+            implements Message {}
+    private record NodeReport(ActorRef<Message> node, List<Placement.VertexTraffic> vertices, long receivedMillis) {}
+
+    /**
+     * The changes a load made to the graph. A vertex is changed when its name or code differs, and started again
+     * when its deployment differs. An edge that differs is removed and added again.
+     */
+    private record GraphDiff(int verticesAdded, int verticesChanged, int verticesRemoved, int edgesAdded,
+                             int edgesRemoved, Set<String> loading) {
+        boolean isEmpty() {
+            return verticesAdded + verticesChanged + verticesRemoved + edgesAdded + edgesRemoved == 0;
+        }
+    }
+
+    /**
+     * @param waiting the answers still expected per vertex, one for each of its instances
+     */
+    private record PendingLoad(Map<String, Integer> waiting, Runnable onReady, Cancellable timeout) {}
+
+    private static final int PLACEMENT_ROUNDS = 20;
+    private static final Duration REPLICATION_TIMEOUT = Duration.ofSeconds(5);
 
     public static Behavior<Message> create() {
-        return Behaviors.setup(context ->
-                Behaviors.withTimers(scheduler -> new Control(context, scheduler)));
+        return Behaviors.setup(context -> Behaviors.withTimers(timers -> new Control(context, timers)));
     }
 
-    private final Vertices vertices = new Vertices();
-    private final Map<String, Edge> edgesById = new HashMap<>();
-    private final ActorRef<CoreLog.LogMessage> logMessageAdapter;
+    /**
+     * The proxy to the Control of the cluster, wherever it runs.
+     */
+    public static ActorRef<Message> singleton(ActorSystem<?> system) {
+        return ClusterSingleton.get(system).init(SingletonActor.of(create(), "control"));
+    }
 
-    private final Map<String, String> subscriptionsBySessionId = new HashMap<>();
-    private final Map<String, ActorRef<WebSocketMessage>> socketsBySessionId = new HashMap<>();
+    private final Vertices vertices = new Vertices();
+    private final Edges edges = new Edges();
     private final NameGenerator nameGenerator = new NameGenerator();
 
-    private Control(ActorContext<Message> context, TimerScheduler<Message> scheduler) {
+    private final Config config;
+    private final boolean clustered;
+    private final boolean fusionEnabled;
+    private final ActorRef<SocketHub.Message> socketHub;
+    private final Map<String, List<Vertex>> chainsByHeadId = new HashMap<>();
+    private final Map<String, String> chainHeadByVertexId = new HashMap<>();
+    private final GraphJournal journal;
+    private final Duration convergeTimeout;
+    private final IngressRoutes ingressRoutes;
+    private final ActorRef<CoreControl.CodeReady> codeReadyAdapter;
+    private final Map<Long, PendingLoad> pendingLoads = new HashMap<>();
+    private long nextLoadId = 0;
+    private final Placement.Settings placementSettings;
+    private final Duration reportInterval;
+    private final ActorRef<CoreControl.Migrated> migratedAdapter;
+    private final Map<Address, NodeReport> nodes = new HashMap<>();
+    private final Map<String, Address> nodeByVertexId = new HashMap<>();
+    private final Map<String, Address> movingTo = new HashMap<>();
+    private final Map<String, CoreControl.Migrated> movedByVertexId = new HashMap<>();
+    private final Deque<Placement.Report> placementRounds = new ArrayDeque<>();
+    private final ReplicatorMessageAdapter<Message, LWWRegister<SystemDescription>> graphReplicator;
+    /**
+     * Messages wait while the Control of a cluster reads the graph, so that none of them meets an empty graph.
+     */
+    private final Deque<Message> stash = new ArrayDeque<>();
+    private boolean restoring;
+    private Receive<Message> stashReceive;
+
+    private Control(ActorContext<Message> context, TimerScheduler<Message> timers) {
         super(context);
-        logMessageAdapter = getContext().messageAdapter(CoreLog.LogMessage.class, WrappedLog::new);
-        scheduler.startTimerAtFixedRate(new RequestMetrics(), Duration.ofSeconds(10));
+        config = context.getSystem().settings().config();
+        clustered = config.getBoolean("vertex.cluster.enabled");
+        if (clustered && config.getBoolean("vertex.fusion.enabled")) {
+            LOGGER.warn("Chains are not fused in a cluster, since a chain may span several nodes");
+        }
+        fusionEnabled = config.getBoolean("vertex.fusion.enabled") && !clustered;
+        // The nodes of a cluster each have their own.
+        socketHub = clustered ? null : getContext().spawn(SocketHub.create(), "sockets");
+        journal = openJournal(config.getConfig("vertex.journal"));
+        convergeTimeout = config.getDuration("vertex.load.converge-timeout");
+        ingressRoutes = IngressRoutes.get(context.getSystem());
+        codeReadyAdapter = context.messageAdapter(CoreControl.CodeReady.class, ready -> new CodeReady(ready.id()));
+        var placement = config.getConfig("vertex.cluster.placement");
+        placementSettings = Placement.Settings.of(placement);
+        reportInterval = placement.getDuration("report-interval");
+        migratedAdapter = context.messageAdapter(CoreControl.Migrated.class, Migrated::new);
+        if (clustered && placement.getBoolean("enabled")) {
+            timers.startTimerWithFixedDelay(new Rebalance(), placement.getDuration("interval"));
+        }
+        if (clustered) {
+            // Whichever node Control starts on, also after the previous one left the cluster.
+            graphReplicator = new ReplicatorMessageAdapter<>(context, replicator(), REPLICATION_TIMEOUT);
+            restoring = true;
+            context.getSelf().tell(new Restore(context.getSystem().ignoreRef()));
+        } else {
+            graphReplicator = null;
+        }
+    }
+
+    private static GraphJournal openJournal(Config config) {
+        if (!config.getBoolean("enabled")) {
+            return null;
+        }
+        try {
+            return GraphJournal.open(Path.of(config.getString("directory")), config.getInt("snapshot-every"));
+        } catch (IOException e) {
+            LOGGER.error("Could not open the graph journal, changes to the graph are not saved", e);
+            return null;
+        }
     }
 
     @Override
     public Receive<Message> createReceive() {
         return newReceiveBuilder()
+                .onMessage(Message.class, msg -> restoring && !(msg instanceof Restore || msg instanceof GraphRead),
+                        msg -> {
+                            stash.add(msg);
+                            return this;
+                        })
                 .onMessage(GetStateRequest.class, msg -> {
-                    var vertexDescriptions = vertices.getAll().stream()
-                            .map(Vertex::describe)
-                            .collect(Collectors.toList());
-                    var description = new SystemDescription(vertexDescriptions, new ArrayList<>(edgesById.values()));
-                    msg.replyTo.tell(description);
+                    msg.replyTo.tell(describe());
                     return this;
                 })
                 .onMessage(LoadStateRequest.class, msg -> {
-                    var system = msg.system;
-                    for (VertexDescription vertex : system.vertices()) {
-                        createVertex(vertex.id(), vertex.name(), vertex.code());
+                    SystemDescription system;
+                    try {
+                        system = complete(msg.system);
+                    } catch (IllegalArgumentException e) {
+                        msg.replyTo.tell(new LoadStateReply(e.getMessage(), null));
+                        return this;
                     }
-                    for (Edge edge : system.edges()) {
-                        linkVertices(edge.id(), edge.from(), edge.to());
+                    var diff = loadState(system);
+                    publishRoutes();
+                    LOGGER.info("Loaded the graph: {} vertices added, {} changed and {} removed, {} edges added and {} "
+                            + "removed", diff.verticesAdded(), diff.verticesChanged(), diff.verticesRemoved(),
+                            diff.edgesAdded(), diff.edgesRemoved());
+                    // One snapshot instead of an entry per change.
+                    if (!diff.isEmpty()) {
+                        if (journal != null) {
+                            journal.snapshot(describe());
+                        }
+                        replicateGraph();
+                    }
+                    awaitCode(diff.loading(), () -> msg.replyTo.tell(new LoadStateReply("Success", describe())));
+                    return this;
+                })
+                .onMessage(Restore.class, msg -> {
+                    if (clustered) {
+                        // The journal of this node misses the changes made while Control ran on another node.
+                        restoring = true;
+                        readGraph(new Replicator.ReadMajority(REPLICATION_TIMEOUT), msg.replyTo);
+                    } else {
+                        restore(journal == null ? null : journal.recovered(), msg.replyTo);
+                    }
+                    return this;
+                })
+                .onMessage(GraphRead.class, msg -> {
+                    if (msg.response instanceof Replicator.GetSuccess<LWWRegister<SystemDescription>> success) {
+                        restore(success.get(ClusterNode.GRAPH).getValue(), msg.replyTo);
+                    } else if (msg.response instanceof Replicator.NotFound) {
+                        // Nothing was replicated yet, since the whole cluster started anew.
+                        restore(journal == null ? null : journal.recovered(), msg.replyTo);
+                    } else {
+                        LOGGER.warn("Could not read the graph from a majority of the nodes, reading the copy of this "
+                                + "node");
+                        readGraph(Replicator.readLocal(), msg.replyTo);
+                    }
+                    return this;
+                })
+                .onMessage(CodeReady.class, msg -> {
+                    codeReady(msg.vertexId);
+                    return this;
+                })
+                .onMessage(LoadTimedOut.class, msg -> {
+                    var pending = pendingLoads.remove(msg.loadId);
+                    if (pending != null) {
+                        LOGGER.warn("The code of {} vertices was not running within {}", pending.waiting().size(),
+                                convergeTimeout);
+                        pending.onReady().run();
                     }
                     return this;
                 })
                 .onMessage(CreateVertex.class, msg -> {
                     String id = UUID.randomUUID().toString();
-                    var description = createVertex(id, msg.name, msg.code);
+                    var description = createVertex(id, msg.name, msg.code, msg.deployment);
+                    publishRoutes();
+                    journal(new GraphJournal.Entry.VertexCreated(description));
                     msg.replyTo.tell(new VertexReply("Success", description));
                     return this;
                 })
                 .onMessage(DeleteVertex.class, msg -> {
-                    vertices.getAll().forEach(vertex -> vertex.getActor().tell(new CoreControl.Disconnect(msg.id)));
-                    var removed = vertices.removeVertex(msg.id);
-                    removed.getActor().tell(new CoreControl.Stop());
-                    subscriptionsBySessionId.values().removeIf(id -> id.equals(msg.id));
-                    edgesById.values().removeIf(edge -> edge.from().equals(msg.id) || edge.to().equals(msg.id));
-                    return this;
-                })
-                .onMessage(ReceiveMsg.class, msg -> {
-                    if (msg.name == null || msg.body == null) {
-                        return this;
-                    }
-                    vertices.getVerticesByName(msg.name)
-                            .forEach(vertex -> vertex.getActor().tell(new CoreConsumer.Message(msg.body)));
+                    fuseChains(deleteVertex(msg.id));
+                    publishRoutes();
+                    journal(new GraphJournal.Entry.VertexDeleted(msg.id));
                     return this;
                 })
                 .onMessage(LoadCode.class, msg -> {
                     var vertex = vertices.getVertexDescriptionById(msg.id);
                     vertex.setCode(msg.code);
-                    vertex.getActor().tell(new CoreControl.LoadCode(msg.replyTo, msg.code));
+                    if (vertex.isRunning()) {
+                        vertex.tell(new CoreControl.LoadCode(msg.replyTo, msg.code));
+                    } else {
+                        // The entity gets the new code when it starts.
+                        msg.replyTo.tell(vertex.describe());
+                    }
+                    journal(new GraphJournal.Entry.CodeLoaded(msg.id, msg.code));
                     return this;
                 })
                 .onMessage(LoadName.class, msg -> {
                     var vertex = vertices.changeVertexName(msg.id, msg.name);
-                    vertex.getActor().tell(new CoreControl.LoadName(msg.replyTo, msg.name));
+                    if (vertex.isRunning()) {
+                        vertex.tell(new CoreControl.LoadName(msg.replyTo, msg.name));
+                    } else {
+                        msg.replyTo.tell(vertex.describe());
+                    }
+                    publishRoutes();
+                    journal(new GraphJournal.Entry.NameLoaded(msg.id, msg.name));
                     return this;
                 })
                 .onMessage(LinkVertices.class, msg -> {
                     String id = UUID.randomUUID().toString();
-                    linkVertices(id, msg.from, msg.to);
+                    linkVertices(id, msg.from, msg.to, msg.batching);
+                    fuseChains(List.of(msg.from, msg.to));
+                    if (fusionEnabled) {
+                        publishRoutes();
+                    }
+                    journal(new GraphJournal.Entry.EdgeCreated(new Edge(id, msg.from, msg.to, msg.batching)));
                     msg.replyTo.tell(new LinkReply("Success", id));
                     return this;
                 })
-                .onMessage(RequestMetrics.class, msg -> {
-                    var vertActors = vertices.getAll();
-                    getContext().spawnAnonymous(Aggregator.create(
-                            CoreMetrics.MetricsWithId.class,
-                            replyTo -> vertActors.forEach(vertex -> vertex.getActor().tell(new CoreMetrics.GetMetrics(replyTo))),
-                            vertActors.size(),
-                            getContext().getSelf(),
-                            replies -> {
-                                var metrics = replies.stream()
-                                        .collect(Collectors.toMap(CoreMetrics.MetricsWithId::vertexId,
-                                                CoreMetrics.MetricsWithId::metrics));
-                                return new VertexMetricsAggregator(metrics);
-                            },
-                            Duration.ofSeconds(5)));
+                .onMessage(LogSubscribe.class, msg -> {
+                    socketHub.tell(msg);
                     return this;
                 })
-                .onMessage(VertexMetricsAggregator.class, msg -> {
-                    var reply = new WebSocketMessage.MetricsAggregate("metrics", msg);
-                    socketsBySessionId.values().forEach(socket -> socket.tell(reply));
+                .onMessage(MetricsSubscribe.class, msg -> {
+                    socketHub.tell(msg);
                     return this;
                 })
-
-
-                .onMessage(LogSubscribe.class, msg -> {
-                    var subscription = subscriptionsBySessionId.get(msg.sessionId);
-                    if (subscription != null) {
-                        // close previous subscription, if it exists.
-                        var oldVertex = vertices.getVertexById(subscription);
-                        oldVertex.tell(new CoreLog.UnsubscribeLog());
+                .onMessage(RegisterControlWebSocket.class, msg -> {
+                    socketHub.tell(msg);
+                    return this;
+                })
+                .onMessage(VertexStarted.class, msg -> {
+                    var vertex = vertices.getVertexDescriptionById(msg.id());
+                    if (vertex == null) {
+                        msg.entity().tell(new VertexEntity.Stop());
+                        return this;
                     }
-                    if (msg.id != null) {
-                        subscriptionsBySessionId.put(msg.sessionId, msg.id);
-                        ActorRef<VertexMessage> newVertex = vertices.getVertexById(msg.id);
-                        newVertex.tell(new CoreLog.SubscribeLog(logMessageAdapter));
-                    } else {
-                        // socket closed, clean up session
-                        subscriptionsBySessionId.remove(msg.sessionId);
-                        socketsBySessionId.remove(msg.sessionId);
+                    // A target that starts later is connected once this vertex runs, or once the target does.
+                    var connects = edges.getOutgoing(msg.id()).stream()
+                            .filter(edge -> vertices.getVertexDescriptionById(edge.to()).isRunning())
+                            .map(this::connect)
+                            .collect(Collectors.toList());
+                    var moved = movedByVertexId.remove(msg.id());
+                    msg.entity().tell(new VertexEntity.Run(vertex.describe(), connects,
+                            moved == null ? null : moved.state(), moved == null ? Map.of() : moved.held()));
+                    return this;
+                })
+                .onMessage(VertexRunning.class, msg -> {
+                    var vertex = vertices.getVertexDescriptionById(msg.id());
+                    if (vertex != null && !msg.core().equals(vertex.getActor())) {
+                        vertexRunning(vertex, msg.core());
                     }
                     return this;
                 })
-                .onMessage(WrappedLog.class, msg -> {
-                    CoreLog.LogMessage message = msg.message;
-                    var id = message.computeId();
-                    subscriptionsBySessionId.entrySet().stream()
-                            .filter(entry -> entry.getValue().equals(id))
-                            .map(Map.Entry::getKey)
-                            .map(socketsBySessionId::get)
-                            .forEach(socket -> socket.tell(new WebSocketMessage.Log("log", message)));
+                .onMessage(VertexTerminated.class, msg -> {
+                    var vertex = vertices.getVertexDescriptionById(msg.id());
+                    if (vertex != null && msg.core().equals(vertex.getActor())) {
+                        LOGGER.info("Vertex {} stopped, starting it again", msg.id());
+                        vertices.setActor(vertex, null, false);
+                        movingTo.remove(msg.id());
+                        publishRoutes();
+                        start(msg.id());
+                    }
                     return this;
                 })
-                .onMessage(RegisterControlWebSocket.class, msg -> {
-                    getContext().getLog().info("Register ws: {}", msg);
-                    socketsBySessionId.put(msg.sessionId, msg.socket);
+                .onMessage(NodeTraffic.class, msg -> {
+                    nodes.put(msg.address(), new NodeReport(msg.node(), msg.vertices(), System.currentTimeMillis()));
+                    msg.vertices().forEach(vertex -> {
+                        if (!movingTo.containsKey(vertex.vertexId())) {
+                            nodeByVertexId.put(vertex.vertexId(), msg.address());
+                        }
+                    });
+                    return this;
+                })
+                .onMessage(Rebalance.class, msg -> {
+                    rebalance();
+                    return this;
+                })
+                .onMessage(Migrated.class, msg -> {
+                    var id = msg.migrated().id();
+                    var vertex = vertices.getVertexDescriptionById(id);
+                    var to = movingTo.get(id);
+                    if (vertex == null || to == null || !msg.migrated().core().equals(vertex.getActor())) {
+                        return this;
+                    }
+                    // Down until sharding has moved the entity, which then announces itself from the new node.
+                    vertices.setActor(vertex, null, false);
+                    publishRoutes();
+                    movedByVertexId.put(id, msg.migrated());
+                    nodeByVertexId.put(id, to);
+                    shardAllocation().setShardLocation(id, to);
+                    return this;
+                })
+                .onMessage(GetPlacement.class, msg -> {
+                    msg.replyTo().tell(new PlacementReply(List.copyOf(placementRounds)));
                     return this;
                 })
                 .build();
     }
 
-    private void linkVertices(String id, String from, String to) {
-        ActorRef<VertexMessage> source = vertices.getVertexById(from);
-        ActorRef<VertexMessage> target = vertices.getVertexById(to);
-        source.tell(new CoreControl.Connect(to, target));
-        edgesById.put(id, new Edge(id, from, to));
+    private SystemDescription describe() {
+        var vertexDescriptions = vertices.getAll().stream()
+                .map(Vertex::describe)
+                .collect(Collectors.toList());
+        return new SystemDescription(vertexDescriptions, new ArrayList<>(edges.getAll()));
     }
 
-    private VertexDescription createVertex(String id, String name, String code) {
+    /**
+     * Gives the vertices and edges without an ID one, and checks that every edge links two vertices of the graph. A
+     * vertex without an ID takes the ID of the existing vertex with the same name, and an edge without an ID takes the
+     * ID of an existing edge between the same vertices, so that loading the same graph twice leaves it as it is.
+     */
+    private SystemDescription complete(SystemDescription system) {
+        var vertexDescriptions = new ArrayList<VertexDescription>();
+        var ids = new HashSet<String>();
+        var claimedIds = system.vertices().stream()
+                .map(VertexDescription::id)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(HashSet::new));
+        for (VertexDescription vertex : system.vertices()) {
+            if (vertex.id() == null) {
+                var id = existingId(vertex.name(), claimedIds).orElseGet(() -> UUID.randomUUID().toString());
+                claimedIds.add(id);
+                vertex = new VertexDescription(id, vertex.name(), vertex.code(), vertex.deployment());
+            }
+            if (!ids.add(vertex.id())) {
+                throw new IllegalArgumentException("Vertex with ID " + vertex.id() + " occurs more than once.");
+            }
+            vertexDescriptions.add(vertex);
+        }
+        var edgeIds = system.edges().stream()
+                .map(Edge::id)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(HashSet::new));
+        var edgeDescriptions = new ArrayList<Edge>();
+        for (Edge edge : system.edges()) {
+            if (!ids.contains(edge.from()) || !ids.contains(edge.to())) {
+                throw new IllegalArgumentException("Edge from " + edge.from() + " to " + edge.to()
+                        + " links a vertex that is not in the graph.");
+            }
+            if (edge.id() == null) {
+                var id = edges.getOutgoing(edge.from()).stream()
+                        .filter(other -> other.to().equals(edge.to()) && !edgeIds.contains(other.id())
+                                && Objects.equals(other.batching(), edge.batching()))
+                        .map(Edge::id)
+                        .findFirst()
+                        .orElseGet(() -> UUID.randomUUID().toString());
+                edgeIds.add(id);
+                edgeDescriptions.add(new Edge(id, edge.from(), edge.to(), edge.batching()));
+            } else {
+                edgeDescriptions.add(edge);
+            }
+        }
+        return new SystemDescription(vertexDescriptions, edgeDescriptions);
+    }
+
+    /**
+     * The ID of an existing vertex with the name, unless the graph being loaded uses it already.
+     */
+    private Optional<String> existingId(String name, Set<String> claimedIds) {
+        return vertices.getVerticesByName(name).stream()
+                .map(Vertex::getId)
+                .filter(id -> !claimedIds.contains(id))
+                .findFirst();
+    }
+
+    /**
+     * Changes the graph into the given one, leaving the vertices and edges that are the same as they are. Everything
+     * is removed first, so that a vertex that is started again gets its edges back.
+     */
+    private GraphDiff loadState(SystemDescription system) {
+        var targetVertices = new LinkedHashMap<String, VertexDescription>();
+        system.vertices().forEach(vertex -> targetVertices.put(vertex.id(), vertex));
+        var targetEdges = new LinkedHashMap<String, Edge>();
+        system.edges().forEach(edge -> targetEdges.put(edge.id(), edge));
+        var affected = new HashSet<String>();
+        var loading = new HashSet<String>();
+        var restarted = new HashSet<String>();
+        int verticesAdded = 0, verticesChanged = 0, verticesRemoved = 0, edgesAdded = 0, edgesRemoved = 0;
+
+        for (Vertex vertex : List.copyOf(vertices.getAll())) {
+            var target = targetVertices.get(vertex.getId());
+            if (target == null || !Objects.equals(target.deployment(), vertex.getDeployment())) {
+                edgesRemoved += edges.getTouching(vertex.getId()).size();
+                affected.addAll(deleteVertex(vertex.getId()));
+                if (target == null) {
+                    verticesRemoved++;
+                } else {
+                    restarted.add(vertex.getId());
+                }
+            }
+        }
+        for (Edge edge : List.copyOf(edges.getAll())) {
+            if (!edge.equals(targetEdges.get(edge.id()))) {
+                unlinkVertices(edge);
+                affected.addAll(List.of(edge.from(), edge.to()));
+                edgesRemoved++;
+            }
+        }
+        for (VertexDescription target : targetVertices.values()) {
+            var vertex = vertices.getVertexDescriptionById(target.id());
+            if (vertex == null) {
+                createVertex(target.id(), target.name(), target.code(), target.deployment());
+                affected.add(target.id());
+                loading.add(target.id());
+                if (restarted.contains(target.id())) {
+                    verticesChanged++;
+                } else {
+                    verticesAdded++;
+                }
+                continue;
+            }
+            boolean changed = false;
+            if (target.name() != null && !target.name().isBlank() && !target.name().equals(vertex.getName())) {
+                vertices.changeVertexName(target.id(), target.name());
+                vertex.tell(new CoreControl.LoadName(getContext().getSystem().ignoreRef(), target.name()));
+                changed = true;
+            }
+            if (!Objects.equals(target.code(), vertex.getCode())) {
+                vertex.setCode(target.code());
+                vertex.tell(new CoreControl.LoadCode(getContext().getSystem().ignoreRef(), target.code()));
+                loading.add(target.id());
+                changed = true;
+            }
+            if (changed) {
+                verticesChanged++;
+            }
+        }
+        for (Edge edge : targetEdges.values()) {
+            if (!edge.equals(edges.getEdge(edge.id()))) {
+                linkVertices(edge.id(), edge.from(), edge.to(), edge.batching());
+                affected.addAll(List.of(edge.from(), edge.to()));
+                edgesAdded++;
+            }
+        }
+        fuseChains(affected);
+        return new GraphDiff(verticesAdded, verticesChanged, verticesRemoved, edgesAdded, edgesRemoved, loading);
+    }
+
+    /**
+     * Runs once the code of all the given vertices is running, or once the converge timeout has passed.
+     */
+    private void awaitCode(Set<String> vertexIds, Runnable onReady) {
+        if (vertexIds.isEmpty()) {
+            onReady.run();
+            return;
+        }
+        var loadId = nextLoadId++;
+        var timeout = getContext().scheduleOnce(convergeTimeout, getContext().getSelf(), new LoadTimedOut(loadId));
+        var waiting = new HashMap<String, Integer>();
+        vertexIds.forEach(id -> waiting.put(id, vertices.getVertexDescriptionById(id).getInstances()));
+        pendingLoads.put(loadId, new PendingLoad(waiting, onReady, timeout));
+        // Sent after the chains are fused, so that a stage answers from inside its head.
+        var await = new CoreControl.AwaitCode(codeReadyAdapter);
+        vertexIds.forEach(id -> vertices.getVertexDescriptionById(id).tell(await));
+    }
+
+    /**
+     * A vertex with more than one instance answers once per instance, and is ready once all of them have.
+     */
+    private void codeReady(String vertexId) {
+        finishLoads(pending -> pending.waiting().computeIfPresent(vertexId,
+                (id, count) -> count > 1 ? count - 1 : null));
+    }
+
+    /**
+     * The loads stop waiting for a vertex that was deleted.
+     */
+    private void stopWaiting(String vertexId) {
+        finishLoads(pending -> pending.waiting().remove(vertexId));
+    }
+
+    private void finishLoads(Consumer<PendingLoad> update) {
+        var iterator = pendingLoads.values().iterator();
+        while (iterator.hasNext()) {
+            var pending = iterator.next();
+            update.accept(pending);
+            if (pending.waiting().isEmpty()) {
+                iterator.remove();
+                pending.timeout().cancel();
+                pending.onReady().run();
+            }
+        }
+    }
+
+    /**
+     * Called after every change to the names of the vertices or to their actors. Fusing and splitting chains moves
+     * vertices to other actors, and so does starting the entity of a vertex on another node. The routes of a cluster
+     * are replicated to every node.
+     */
+    private void publishRoutes() {
+        var changes = vertices.takeChanges();
+        if (clustered) {
+            var table = IngressRoutes.Table.of(vertices.getAll());
+            var node = DistributedData.get(getContext().getSystem()).selfUniqueAddress();
+            replicator().tell(new Replicator.Update<>(ClusterNode.ROUTES, LWWRegister.create(node, table),
+                    Replicator.writeLocal(), getContext().getSystem().ignoreRef(),
+                    register -> register.withValue(node, table)));
+        } else if (!changes.isEmpty()) {
+            ingressRoutes.publish(vertices, changes);
+            socketHub.tell(new SocketHub.RoutesChanged());
+        }
+    }
+
+    private ActorRef<Replicator.Command> replicator() {
+        return DistributedData.get(getContext().getSystem()).replicator();
+    }
+
+    private EntityRef<VertexEntity.Command> entity(String id) {
+        return ClusterSharding.get(getContext().getSystem()).entityRefFor(VertexEntity.TYPE_KEY, id);
+    }
+
+    private ExternalShardAllocationClient shardAllocation() {
+        return ExternalShardAllocation.get(getContext().getSystem()).getClient(VertexEntity.TYPE_KEY.name());
+    }
+
+    /**
+     * Starts the entity of the vertex on the node it last ran on, or else on the node with the fewest vertices. The
+     * entity is started from that node itself, so that sharding puts it there even before the location has spread.
+     * Before any node has reported, sharding puts it on this node.
+     */
+    private void start(String id) {
+        var live = liveNodes();
+        var node = nodeByVertexId.get(id);
+        if (node == null || !live.containsKey(node)) {
+            node = Placement.initial(nodeByVertexId, live.keySet());
+        }
+        if (node == null) {
+            entity(id).tell(new VertexEntity.Start());
+            return;
+        }
+        nodeByVertexId.put(id, node);
+        shardAllocation().setShardLocation(id, node);
+        live.get(node).node().tell(new ClusterNode.StartVertex(id));
+    }
+
+    /**
+     * The nodes that have reported within the last few report intervals.
+     */
+    private Map<Address, NodeReport> liveNodes() {
+        var oldest = System.currentTimeMillis() - 3 * reportInterval.toMillis();
+        nodes.values().removeIf(report -> report.receivedMillis() < oldest);
+        return nodes;
+    }
+
+    /**
+     * Plans the placement from the last reports of the nodes, and moves the vertices that the plan moves. A round
+     * waits for the moves of the round before to finish.
+     */
+    private void rebalance() {
+        var live = liveNodes();
+        if (live.size() < 2 || !movingTo.isEmpty()) {
+            return;
+        }
+        var running = new HashMap<String, Address>();
+        var traffic = new ArrayList<Placement.VertexTraffic>();
+        live.forEach((address, report) -> report.vertices().forEach(vertex -> {
+            if (vertices.getVertexDescriptionById(vertex.vertexId()) != null) {
+                running.put(vertex.vertexId(), address);
+                traffic.add(vertex);
+            }
+        }));
+        var movable = running.keySet().stream()
+                .filter(this::isMovable)
+                .collect(Collectors.toSet());
+        var plan = Placement.plan(running, live.keySet(), traffic, movable, placementSettings);
+        var report = plan.report();
+        if (placementRounds.size() == PLACEMENT_ROUNDS) {
+            placementRounds.poll();
+        }
+        placementRounds.add(report);
+        if (plan.moves().isEmpty()) {
+            LOGGER.debug("Cross-node traffic is {} of {} messages per second", Math.round(report.crossNodeBefore()),
+                    Math.round(report.traffic()));
+            return;
+        }
+        LOGGER.info("Moving {} vertices: cross-node traffic is {} of {} messages per second, and is expected to be {}",
+                plan.moves().size(), Math.round(report.crossNodeBefore()), Math.round(report.traffic()),
+                Math.round(report.crossNodeAfter()));
+        plan.moves().forEach(this::move);
+    }
+
+    /**
+     * Only a vertex with a single instance can take its state along, and a vertex whose code is loading stays where
+     * it is until the load is done.
+     */
+    private boolean isMovable(String id) {
+        var vertex = vertices.getVertexDescriptionById(id);
+        return vertex.isRunning() && (vertex.getDeployment() == null || vertex.getDeployment().instances() == 1)
+                && pendingLoads.values().stream().noneMatch(pending -> pending.waiting().containsKey(id));
+    }
+
+    /**
+     * Moves the vertex to the node without losing or reordering a message. The sources pause their edges to it and
+     * keep what they send from then on, the Core handles what it has received and hands its state to Control, and
+     * sharding then starts the entity on the new node. The sources connect to the new Core once it runs, and send it
+     * what they kept.
+     */
+    private void move(String id, Address to) {
+        movingTo.put(id, to);
+        // The ingest sessions detach once they see the paused route, and keep what they receive meanwhile.
+        vertices.setMoving(vertices.getVertexDescriptionById(id), true);
+        publishRoutes();
+        edges.getIncoming(id).stream()
+                .map(Edge::from)
+                .distinct()
+                .forEach(source -> vertices.getVertexDescriptionById(source).tell(new CoreControl.Pause(id)));
+        vertices.getVertexDescriptionById(id).tell(new CoreControl.Migrate(migratedAdapter));
+    }
+
+    /**
+     * The entity of the vertex has started its Core, for the first time or again, on this node or another. It connects
+     * to its running targets and its sources connect to it, so that an edge is connected by whichever of its ends runs
+     * last. A load that waits for its code asks it again.
+     */
+    private void vertexRunning(Vertex vertex, ActorRef<VertexMessage> core) {
+        vertices.setActor(vertex, core, false);
+        vertices.setMoving(vertex, false);
+        movingTo.remove(vertex.getId());
+        getContext().watchWith(core, new VertexTerminated(vertex.getId(), core));
+        edges.getOutgoing(vertex.getId()).stream()
+                .filter(edge -> vertices.getVertexDescriptionById(edge.to()).isRunning())
+                .forEach(edge -> core.tell(connect(edge)));
+        edges.getIncoming(vertex.getId()).stream()
+                .filter(edge -> !edge.from().equals(vertex.getId()))
+                .collect(Collectors.toMap(Edge::from, edge -> edge, (first, second) -> first))
+                .values()
+                .forEach(edge -> vertices.getVertexDescriptionById(edge.from()).tell(connect(edge)));
+        // Every instance of the new Core answers, whatever the previous one did.
+        var instances = vertex.getInstances();
+        var asked = false;
+        for (PendingLoad pending : pendingLoads.values()) {
+            asked |= pending.waiting().computeIfPresent(vertex.getId(), (id, count) -> instances) != null;
+        }
+        if (asked) {
+            vertex.tell(new CoreControl.AwaitCode(codeReadyAdapter));
+        }
+        publishRoutes();
+    }
+
+    /**
+     * Compacts the journal into a snapshot of the current graph every so many entries. A cluster replicates the whole
+     * graph as well.
+     */
+    private void journal(GraphJournal.Entry entry) {
+        if (journal != null && journal.append(entry)) {
+            journal.snapshot(describe());
+        }
+        replicateGraph();
+    }
+
+    /**
+     * Replicates the graph to every node of a cluster, so that the Control that takes over when this node leaves has
+     * it. The graph goes to a majority of the nodes right away, rather than with the next gossip.
+     */
+    private void replicateGraph() {
+        if (!clustered) {
+            return;
+        }
+        var graph = describe();
+        var node = DistributedData.get(getContext().getSystem()).selfUniqueAddress();
+        replicator().tell(new Replicator.Update<>(ClusterNode.GRAPH, LWWRegister.create(node, graph),
+                new Replicator.WriteMajority(REPLICATION_TIMEOUT), getContext().getSystem().ignoreRef(),
+                register -> register.withValue(node, graph)));
+    }
+
+    private void readGraph(Replicator.ReadConsistency consistency, ActorRef<Done> replyTo) {
+        graphReplicator.askGet(askReplyTo -> new Replicator.Get<>(ClusterNode.GRAPH, consistency, askReplyTo),
+                response -> new GraphRead(response, replyTo));
+    }
+
+    /**
+     * Loads the restored graph, if there is one, and handles the messages that waited for it.
+     */
+    private void restore(SystemDescription system, ActorRef<Done> replyTo) throws Exception {
+        if (system == null) {
+            replyTo.tell(Done.getInstance());
+        } else {
+            var diff = loadState(system);
+            publishRoutes();
+            // Starting from a fresh snapshot keeps the next restart short.
+            if (journal != null) {
+                journal.snapshot(describe());
+            }
+            replicateGraph();
+            LOGGER.info("Restored {} vertices and {} edges", system.vertices().size(), system.edges().size());
+            awaitCode(diff.loading(), () -> replyTo.tell(Done.getInstance()));
+        }
+        restoring = false;
+        if (stashReceive == null) {
+            stashReceive = createReceive();
+        }
+        while (!stash.isEmpty()) {
+            stashReceive.receiveMessage(stash.poll());
+        }
+    }
+
+    /**
+     * Stops the vertex and removes its edges. Returns the vertices it was linked to, whose chains may be fused again.
+     */
+    private Set<String> deleteVertex(String id) {
+        var touching = edges.getTouching(id);
+        var affected = new HashSet<>(Set.of(id));
+        touching.forEach(edge -> affected.addAll(List.of(edge.from(), edge.to())));
+        splitChains(affected);
+        touching.stream()
+                .filter(edge -> edge.to().equals(id) && !edge.from().equals(id))
+                .map(Edge::from)
+                .distinct()
+                .forEach(source -> vertices.getVertexDescriptionById(source).tell(new CoreControl.Disconnect(id)));
+        var removed = vertices.removeVertex(id);
+        if (clustered) {
+            nodeByVertexId.remove(id);
+            movingTo.remove(id);
+            movedByVertexId.remove(id);
+            entity(id).tell(new VertexEntity.Stop());
+        } else {
+            removed.tell(new CoreControl.Stop());
+        }
+        touching.forEach(edge -> edges.removeEdge(edge.id()));
+        stopWaiting(id);
+        affected.remove(id);
+        return affected;
+    }
+
+    private void linkVertices(String id, String from, String to, Batching batching) {
+        splitChains(List.of(from, to));
+        var edge = new Edge(id, from, to, batching);
+        // A target that has not started yet is connected to its sources once it has.
+        if (vertices.getVertexDescriptionById(to).isRunning()) {
+            vertices.getVertexDescriptionById(from).tell(connect(edge));
+        }
+        edges.addEdge(edge);
+    }
+
+    private void unlinkVertices(Edge edge) {
+        splitChains(List.of(edge.from(), edge.to()));
+        edges.removeEdge(edge.id());
+        // The source has one connection per target, however many edges there are between them.
+        if (edges.getOutgoing(edge.from()).stream().noneMatch(other -> other.to().equals(edge.to()))) {
+            vertices.getVertexDescriptionById(edge.from()).tell(new CoreControl.Disconnect(edge.to()));
+        }
+    }
+
+    private CoreControl.Connect connect(Edge edge) {
+        var target = vertices.getVertexDescriptionById(edge.to());
+        // Batches are routed as a whole, which would break the key affinity of a partitioned vertex.
+        var batching = target.isPartitioned() ? Batching.NONE : edge.batching();
+        return new CoreControl.Connect(edge.to(), target.getActor(), batching);
+    }
+
+    /**
+     * Runs the linear chains that contain any of the given vertices inside the actor of their head, when fusion is
+     * enabled. The stages of a chain start inside the head with the state of their own actors, which are stopped.
+     */
+    private void fuseChains(Collection<String> vertexIds) {
+        if (!fusionEnabled) {
+            return;
+        }
+        for (List<Vertex> chain : LinearChains.find(vertexIds, vertices, edges)) {
+            var head = chain.get(0);
+            if (chainsByHeadId.containsKey(head.getId())) {
+                continue;
+            }
+            var stages = chain.subList(1, chain.size());
+            var tail = chain.get(chain.size() - 1);
+            var tailEdges = edges.getOutgoing(tail.getId()).stream()
+                    .map(this::connect)
+                    .collect(Collectors.toList());
+            var stageDescriptions = stages.stream()
+                    .map(Vertex::describe)
+                    .collect(Collectors.toList());
+            // The head stops the actors of the stages itself, after flushing the edge to the first one.
+            head.tell(new CoreControl.Fuse(stageDescriptions, tailEdges));
+            for (Vertex stage : stages) {
+                vertices.setActor(stage, head.getActor(), true);
+                chainHeadByVertexId.put(stage.getId(), head.getId());
+            }
+            chainHeadByVertexId.put(head.getId(), head.getId());
+            chainsByHeadId.put(head.getId(), List.copyOf(chain));
+        }
+    }
+
+    /**
+     * Splits the chains that contain any of the given vertices back into one actor per vertex. This happens before
+     * an edge touching the chain is added or removed.
+     */
+    private void splitChains(Collection<String> vertexIds) {
+        vertexIds.stream()
+                .map(chainHeadByVertexId::get)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList())
+                .forEach(this::splitChain);
+    }
+
+    private void splitChain(String headId) {
+        var chain = chainsByHeadId.remove(headId);
+        chain.forEach(vertex -> chainHeadByVertexId.remove(vertex.getId()));
+        var stages = chain.subList(1, chain.size());
+        var stageActors = new HashMap<String, ActorRef<VertexMessage>>();
+        for (Vertex stage : stages) {
+            var props = vertexProps(stage.getDispatcher());
+            var actor = getContext().spawnAnonymous(
+                    Core.create(stage.getId(), stage.getName(), stage.getCode(), stage.getDeployment(), props), props);
+            vertices.setActor(stage, actor, false);
+            stageActors.put(stage.getId(), actor);
+        }
+        // The stages are connected before the head sends them anything.
+        for (Vertex stage : stages) {
+            edges.getOutgoing(stage.getId()).forEach(edge -> stage.tell(connect(edge)));
+        }
+        var head = chain.get(0);
+        // The head hands the stages their state before it sends them anything.
+        head.tell(new CoreControl.Unfuse(connect(edges.getOutgoing(headId).iterator().next()), stageActors));
+    }
+
+    private Props vertexProps(String dispatcher) {
+        return VertexDispatchers.props(config, dispatcher).withNext(MailboxSelector.fromConfig("vertex.mailbox"));
+    }
+
+    private VertexDescription createVertex(String id, String name, String code, Deployment deployment) {
         String vertName;
         if (name == null || name.isBlank()) {
             vertName = nameGenerator.generateName();
         } else {
             vertName = name;
         }
-        ActorRef<VertexMessage> vert = getContext().spawn(Core.create(id, vertName, code), id);
-        vertices.addVertex(new Vertex(vert, id, name, code));
-        return new VertexDescription(id, vertName, code);
+        var dispatcher = VertexDispatchers.resolve(deployment, code);
+        if (clustered) {
+            vertices.addVertex(new Vertex(null, id, vertName, code, deployment, dispatcher));
+            start(id);
+            return new VertexDescription(id, vertName, code, deployment);
+        }
+        var props = vertexProps(dispatcher);
+        var behavior = Core.create(id, vertName, code, deployment, props);
+        // The actor of a vertex that is started again may still be stopping under the same name.
+        ActorRef<VertexMessage> vert = getContext().getChild(id).isPresent()
+                ? getContext().spawnAnonymous(behavior, props)
+                : getContext().spawn(behavior, id, props);
+        vertices.addVertex(new Vertex(vert, id, vertName, code, deployment, dispatcher));
+        return new VertexDescription(id, vertName, code, deployment);
     }
 }
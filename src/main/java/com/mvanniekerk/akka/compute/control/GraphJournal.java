@@ -0,0 +1,161 @@
+package com.mvanniekerk.akka.compute.control;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.mvanniekerk.akka.compute.control.graph.Edge;
+import com.mvanniekerk.akka.compute.util.Codecs;
+import com.mvanniekerk.akka.compute.vertex.VertexDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local journal of the changes to the graph, one JSON line per change, compacted into a snapshot of the whole graph
+ * every so many entries. Entries are numbered, and the snapshot holds the number of the last entry it includes, so
+ * that a crash between writing the snapshot and starting a new journal applies no entry twice. Lines are flushed to
+ * the operating system, not synced to the disk.
+ */
+class GraphJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphJournal.class);
+
+    @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
+    @JsonSubTypes({
+            @JsonSubTypes.Type(value = Entry.VertexCreated.class, name = "vertexCreated"),
+            @JsonSubTypes.Type(value = Entry.VertexDeleted.class, name = "vertexDeleted"),
+            @JsonSubTypes.Type(value = Entry.CodeLoaded.class, name = "codeLoaded"),
+            @JsonSubTypes.Type(value = Entry.NameLoaded.class, name = "nameLoaded"),
+            @JsonSubTypes.Type(value = Entry.EdgeCreated.class, name = "edgeCreated"),
+    })
+    interface Entry {
+        record VertexCreated(VertexDescription vertex) implements Entry {}
+        record VertexDeleted(String id) implements Entry {}
+        record CodeLoaded(String id, String code) implements Entry {}
+        record NameLoaded(String id, String name) implements Entry {}
+        record EdgeCreated(Edge edge) implements Entry {}
+    }
+
+    private record Line(long sequence, Entry entry) {}
+    private record Snapshot(long sequence, SystemDescription system) {}
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final int snapshotEvery;
+    private final SystemDescription recovered;
+    private BufferedWriter writer;
+    private long sequence;
+    private int entriesSinceSnapshot = 0;
+
+    private GraphJournal(Path directory, int snapshotEvery) throws IOException {
+        this.journalPath = directory.resolve("journal.jsonl");
+        this.snapshotPath = directory.resolve("snapshot.json");
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(directory);
+        this.recovered = recover();
+        this.writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens the journal in the directory, and reads back the graph it holds.
+     */
+    static GraphJournal open(Path directory, int snapshotEvery) throws IOException {
+        return new GraphJournal(directory, snapshotEvery);
+    }
+
+    /**
+     * The graph as it was when the journal was opened.
+     */
+    SystemDescription recovered() {
+        return recovered;
+    }
+
+    private SystemDescription recover() throws IOException {
+        var vertices = new LinkedHashMap<String, VertexDescription>();
+        var edges = new LinkedHashMap<String, Edge>();
+        if (Files.exists(snapshotPath)) {
+            var snapshot = Codecs.readValue(Files.readAllBytes(snapshotPath), Snapshot.class);
+            snapshot.system().vertices().forEach(vertex -> vertices.put(vertex.id(), vertex));
+            snapshot.system().edges().forEach(edge -> edges.put(edge.id(), edge));
+            sequence = snapshot.sequence();
+        }
+        if (Files.exists(journalPath)) {
+            var reader = Codecs.reader(Line.class);
+            for (String text : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                Line line;
+                try {
+                    line = reader.readValue(text);
+                } catch (IOException e) {
+                    // Only the last line can be cut off, by a crash while it was written.
+                    LOGGER.warn("Skipping a damaged line of the graph journal: {}", text);
+                    continue;
+                }
+                if (line.sequence() > sequence) {
+                    apply(line.entry(), vertices, edges);
+                    sequence = line.sequence();
+                    entriesSinceSnapshot++;
+                }
+            }
+        }
+        return new SystemDescription(new ArrayList<>(vertices.values()), new ArrayList<>(edges.values()));
+    }
+
+    private static void apply(Entry entry, Map<String, VertexDescription> vertices, Map<String, Edge> edges) {
+        if (entry instanceof Entry.VertexCreated created) {
+            vertices.put(created.vertex().id(), created.vertex());
+        } else if (entry instanceof Entry.VertexDeleted deleted) {
+            vertices.remove(deleted.id());
+            edges.values().removeIf(edge -> edge.from().equals(deleted.id()) || edge.to().equals(deleted.id()));
+        } else if (entry instanceof Entry.CodeLoaded loaded) {
+            vertices.computeIfPresent(loaded.id(), (id, vertex) ->
+                    new VertexDescription(id, vertex.name(), loaded.code(), vertex.deployment()));
+        } else if (entry instanceof Entry.NameLoaded loaded) {
+            vertices.computeIfPresent(loaded.id(), (id, vertex) ->
+                    new VertexDescription(id, loaded.name(), vertex.code(), vertex.deployment()));
+        } else if (entry instanceof Entry.EdgeCreated created) {
+            edges.put(created.edge().id(), created.edge());
+        }
+    }
+
+    /**
+     * Returns whether a snapshot is due.
+     */
+    boolean append(Entry entry) {
+        try {
+            writer.write(Codecs.writeValueAsString(new Line(++sequence, entry)));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            LOGGER.error("Could not write to the graph journal", e);
+        }
+        return ++entriesSinceSnapshot >= snapshotEvery;
+    }
+
+    /**
+     * Replaces the snapshot with the given graph, which must include every entry appended so far, and starts an
+     * empty journal.
+     */
+    void snapshot(SystemDescription system) {
+        try {
+            var temporary = snapshotPath.resolveSibling("snapshot.json.tmp");
+            Files.write(temporary, Codecs.writeValueAsBytes(new Snapshot(sequence, system)));
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer.close();
+            writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            entriesSinceSnapshot = 0;
+        } catch (IOException e) {
+            LOGGER.error("Could not write a snapshot of the graph", e);
+        }
+    }
+}
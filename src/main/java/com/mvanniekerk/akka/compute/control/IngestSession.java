@@ -0,0 +1,271 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.mvanniekerk.akka.compute.vertex.CoreConsumer;
+import com.mvanniekerk.akka.compute.vertex.CoreFlow;
+import com.mvanniekerk.akka.compute.vertex.InstanceCredits;
+import com.mvanniekerk.akka.compute.vertex.Payload;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the frames of one {@code /sendws} connection to the vertices. The session attaches to every vertex it
+ * sends to, like an upstream vertex does, and only sends as far as the credits of the vertex allow. A frame is
+ * acknowledged, so that the next one is read from the socket, once no more than {@code vertex.ingest.max-pending}
+ * messages are waiting for credits. When the connection closes, the session stops once the messages it holds are sent.
+ */
+public class IngestSession extends AbstractBehavior<IngestSession.Message> {
+    private static final Duration STATS_INTERVAL = Duration.ofSeconds(1);
+
+    public interface Message {}
+
+    public record Item(String name, Payload body) {}
+    /**
+     * The messages of one frame, a single one or a batch. A frame that could not be decoded has no items.
+     */
+    public record Frame(List<Item> items, int bytes, boolean malformed) {}
+    public enum Ack { INSTANCE }
+
+    public record Init(ActorRef<Ack> ackTo) implements Message {}
+    public record Received(ActorRef<Ack> ackTo, Frame frame) implements Message {}
+    public record Completed() implements Message {}
+    public record Failed(Throwable cause) implements Message {}
+    private record WrappedFlow(CoreFlow flow) implements Message {}
+    private record PublishStats() implements Message {}
+
+    private static final class Flow {
+        private final IngressRoutes.Route route;
+        private final Deque<Payload> pending;
+        private final InstanceCredits credits = new InstanceCredits();
+
+        private Flow(IngressRoutes.Route route, Deque<Payload> pending) {
+            this.route = route;
+            this.pending = pending;
+        }
+    }
+
+    public static Behavior<Message> create(String sessionId) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers -> {
+            timers.startTimerAtFixedRate(new PublishStats(), STATS_INTERVAL);
+            return new IngestSession(context, sessionId);
+        }));
+    }
+
+    private final String sessionId;
+    private final String flowId;
+    private final IngressRoutes routes;
+    private final int maxPending;
+    private final ActorRef<CoreFlow> creditAdapter;
+    private final Map<String, Flow> flowsByVertexId = new HashMap<>();
+    private ActorRef<Ack> waitingAck;
+    private int queued = 0;
+    private boolean closed = false;
+
+    private long frames = 0;
+    private long messages = 0;
+    private long bytes = 0;
+    private long unrouted = 0;
+    private long malformed = 0;
+    private long dropped = 0;
+    private long messagesAtLastStats = 0;
+    private long lastStatsNanos = System.nanoTime();
+    private long backpressuredSince = -1;
+    private long backpressuredNanos = 0;
+
+    private IngestSession(ActorContext<Message> context, String sessionId) {
+        super(context);
+        this.sessionId = sessionId;
+        this.flowId = "ingest/" + sessionId;
+        this.routes = IngressRoutes.get(context.getSystem());
+        this.maxPending = context.getSystem().settings().config().getInt("vertex.ingest.max-pending");
+        this.creditAdapter = context.messageAdapter(CoreFlow.class, WrappedFlow::new);
+    }
+
+    @Override
+    public Receive<Message> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Init.class, msg -> {
+                    msg.ackTo().tell(Ack.INSTANCE);
+                    return this;
+                })
+                .onMessage(Received.class, msg -> {
+                    receive(msg.frame());
+                    waitingAck = msg.ackTo();
+                    ackIfReady();
+                    return this;
+                })
+                .onMessage(WrappedFlow.class, msg -> {
+                    if (msg.flow() instanceof CoreFlow.Attached attached) {
+                        granted(attached.targetId(), flow -> flow.credits.attached(attached));
+                    } else if (msg.flow() instanceof CoreFlow.Credit credit) {
+                        granted(credit.targetId(), flow -> flow.credits.grant(credit.instance(), credit.amount()));
+                    }
+                    return stopWhenSent();
+                })
+                .onMessage(PublishStats.class, msg -> {
+                    rerouteFlows();
+                    ackIfReady();
+                    publishStats();
+                    return stopWhenSent();
+                })
+                .onMessage(Completed.class, msg -> {
+                    closed = true;
+                    return stopWhenSent();
+                })
+                .onMessage(Failed.class, msg -> {
+                    getContext().getLog().debug("Ingest session {} failed", sessionId, msg.cause());
+                    closed = true;
+                    return stopWhenSent();
+                })
+                .onSignal(PostStop.class, signal -> {
+                    var detach = new CoreFlow.Detach(flowId, creditAdapter);
+                    flowsByVertexId.values().stream()
+                            .filter(flow -> !flow.route.paused())
+                            .forEach(flow -> flow.route.tell(detach));
+                    routes.remove(sessionId);
+                    return this;
+                })
+                .build();
+    }
+
+    private Behavior<Message> stopWhenSent() {
+        return closed && queued == 0 ? Behaviors.stopped() : this;
+    }
+
+    private void receive(Frame frame) {
+        frames++;
+        bytes += frame.bytes();
+        if (frame.malformed()) {
+            malformed++;
+            return;
+        }
+        var touched = new ArrayList<Flow>();
+        for (Item item : frame.items()) {
+            messages++;
+            var targets = routes.routes(item.name());
+            if (targets.isEmpty()) {
+                unrouted++;
+                continue;
+            }
+            for (IngressRoutes.Route route : targets) {
+                var flow = flow(route);
+                if (flow.pending.isEmpty()) {
+                    touched.add(flow);
+                }
+                flow.pending.add(item.body());
+                queued++;
+            }
+        }
+        touched.forEach(this::send);
+    }
+
+    /**
+     * A vertex that moved to another actor, by fusing or splitting chains, is attached to again. Its pending messages
+     * move along. A vertex that moves to another node is detached from, so that it can stop, and is attached to once
+     * it runs again.
+     */
+    private Flow flow(IngressRoutes.Route route) {
+        var flow = flowsByVertexId.get(route.vertexId());
+        if (flow != null && flow.route.equals(route)) {
+            return flow;
+        }
+        Deque<Payload> moved = new ArrayDeque<>();
+        if (flow != null) {
+            if (!flow.route.paused()) {
+                flow.route.tell(new CoreFlow.Detach(flowId, creditAdapter));
+            }
+            moved = flow.pending;
+        }
+        if (!route.paused()) {
+            route.tell(new CoreFlow.Attach(flowId, creditAdapter));
+        }
+        var attached = new Flow(route, moved);
+        flowsByVertexId.put(route.vertexId(), attached);
+        return attached;
+    }
+
+    private void rerouteFlows() {
+        for (Flow flow : List.copyOf(flowsByVertexId.values())) {
+            var route = routes.route(flow.route.vertexId());
+            if (route == null) {
+                dropped += flow.pending.size();
+                queued -= flow.pending.size();
+                flowsByVertexId.remove(flow.route.vertexId());
+            } else if (!route.equals(flow.route)) {
+                flow(route);
+            }
+        }
+    }
+
+    private void granted(String vertexId, Consumer<Flow> grant) {
+        var flow = flowsByVertexId.get(vertexId);
+        if (flow != null) {
+            grant.accept(flow);
+            send(flow);
+            ackIfReady();
+        }
+    }
+
+    /**
+     * Sends as far as the credits allow, in batches unless the vertex is partitioned, since a batch is routed to an
+     * instance as a whole.
+     */
+    private void send(Flow flow) {
+        // Credits granted before the route paused are not used, since the vertex no longer waits for the messages.
+        while (!flow.route.paused() && !flow.pending.isEmpty()) {
+            var instance = flow.credits.instanceFor(flow.pending.peek());
+            if (instance < 0) {
+                break;
+            }
+            var size = flow.route.partitioned() ? 1 : Math.min(flow.credits.credits(instance), flow.pending.size());
+            var core = flow.credits.take(instance, size);
+            queued -= size;
+            if (size == 1) {
+                flow.route.tell(core, new CoreConsumer.Message(flowId, flow.pending.poll()));
+            } else {
+                var batch = new ArrayList<Payload>(size);
+                for (int i = 0; i < size; i++) {
+                    batch.add(flow.pending.poll());
+                }
+                flow.route.tell(core, new CoreConsumer.MessageBatch(flowId, batch));
+            }
+        }
+    }
+
+    private void ackIfReady() {
+        var ready = queued <= maxPending;
+        if (ready && waitingAck != null) {
+            waitingAck.tell(Ack.INSTANCE);
+            waitingAck = null;
+        }
+        if (!ready && backpressuredSince < 0) {
+            backpressuredSince = System.nanoTime();
+        } else if (ready && backpressuredSince >= 0) {
+            backpressuredNanos += System.nanoTime() - backpressuredSince;
+            backpressuredSince = -1;
+        }
+    }
+
+    private void publishStats() {
+        var now = System.nanoTime();
+        var rate = (messages - messagesAtLastStats) * 1e9 / Math.max(1, now - lastStatsNanos);
+        messagesAtLastStats = messages;
+        lastStatsNanos = now;
+        var backpressured = backpressuredNanos + (backpressuredSince >= 0 ? now - backpressuredSince : 0);
+        routes.publish(new IngressRoutes.Ingest(sessionId, frames, messages, bytes, unrouted, malformed, dropped,
+                rate, backpressured / 1_000_000));
+    }
+}
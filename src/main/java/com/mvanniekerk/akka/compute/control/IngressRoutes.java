@@ -0,0 +1,175 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import com.mvanniekerk.akka.compute.control.graph.Vertex;
+import com.mvanniekerk.akka.compute.control.graph.Vertices;
+import com.mvanniekerk.akka.compute.vertex.CoreConsumer;
+import com.mvanniekerk.akka.compute.vertex.CoreControl;
+import com.mvanniekerk.akka.compute.vertex.Payload;
+import com.mvanniekerk.akka.compute.vertex.VertexMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The vertices that external messages are sent to, by name. {@link Control} publishes the routes of the vertices that
+ * were created, renamed, deleted or moved to another actor, name by name, and ingress reads the latest routes without
+ * sending a message to any actor. In a cluster the whole table is replicated to every node by the {@link ClusterNode}.
+ * The {@link IngestSession}s publish their statistics here as well.
+ */
+public class IngressRoutes implements Extension {
+    public static final ExtensionId<IngressRoutes> ID = new ExtensionId<>() {
+        @Override
+        public IngressRoutes createExtension(ActorSystem<?> system) {
+            return new IngressRoutes();
+        }
+    };
+
+    /**
+     * A hosted vertex is reached through the actor of the head of its chain. The route of a vertex that moves to
+     * another node is paused: flows detach from it and keep their messages until the vertex runs again, and its actor
+     * is null once the vertex has stopped on its old node.
+     */
+    public record Route(String vertexId, ActorRef<VertexMessage> actor, boolean hosted, boolean partitioned,
+                        boolean paused) {
+        public void tell(VertexMessage message) {
+            tell(actor, message);
+        }
+
+        /**
+         * Sends to an instance of the vertex, which is its actor unless the vertex has several instances.
+         */
+        public void tell(ActorRef<VertexMessage> core, VertexMessage message) {
+            core.tell(hosted ? new CoreControl.Staged(vertexId, message) : message);
+        }
+    }
+
+    /**
+     * @param messagesPerSecond over the last statistics interval of the session
+     * @param dropped messages for a vertex that was deleted before they could be delivered
+     */
+    public record Ingest(String sessionId, long frames, long messages, long bytes, long unrouted, long malformed,
+                         long dropped, double messagesPerSecond, long backpressuredMillis) {}
+
+    /**
+     * The routes to the vertices by name. A vertex of a cluster whose actor has not started yet has no route, unless it
+     * is moving.
+     */
+    public record Table(Map<String, List<Route>> routesByName) {
+        static Table of(Collection<Vertex> vertices) {
+            var routesByName = new HashMap<String, List<Route>>();
+            for (Vertex vertex : vertices) {
+                var route = route(vertex);
+                if (route != null) {
+                    routesByName.computeIfAbsent(vertex.getName(), name -> new ArrayList<>()).add(route);
+                }
+            }
+            routesByName.replaceAll((name, routes) -> List.copyOf(routes));
+            return new Table(Map.copyOf(routesByName));
+        }
+    }
+
+    private static Route route(Vertex vertex) {
+        if (vertex == null || (vertex.getActor() == null && !vertex.isMoving())) {
+            return null;
+        }
+        return new Route(vertex.getId(), vertex.getActor(), vertex.isHosted(), vertex.isPartitioned(),
+                vertex.isMoving());
+    }
+
+    private final Map<String, List<Route>> routesByName = new ConcurrentHashMap<>();
+    private final Map<String, Route> routesByVertexId = new ConcurrentHashMap<>();
+    private final Map<String, Ingest> ingestBySessionId = new ConcurrentHashMap<>();
+
+    public static IngressRoutes get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    public List<Route> routes(String name) {
+        return routesByName.getOrDefault(name, List.of());
+    }
+
+    /**
+     * The current route to the vertex, or null when it does not exist.
+     */
+    public Route route(String vertexId) {
+        return routesByVertexId.get(vertexId);
+    }
+
+    /**
+     * Sends the message to every vertex with the name that has an actor. Returns the number of vertices it was sent to.
+     */
+    public int send(String name, Payload body) {
+        var sent = 0;
+        for (Route route : routes(name)) {
+            if (route.actor() != null) {
+                route.tell(new CoreConsumer.Message(null, body));
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    public Collection<Ingest> ingest() {
+        return List.copyOf(ingestBySessionId.values());
+    }
+
+    /**
+     * Replaces all routes with those of the table. A name that is in both keeps a route throughout.
+     */
+    void publish(Table table) {
+        var vertexIds = new HashSet<String>();
+        table.routesByName().forEach((name, routes) -> {
+            routesByName.put(name, routes);
+            routes.forEach(route -> {
+                routesByVertexId.put(route.vertexId(), route);
+                vertexIds.add(route.vertexId());
+            });
+        });
+        routesByName.keySet().retainAll(table.routesByName().keySet());
+        routesByVertexId.keySet().retainAll(vertexIds);
+    }
+
+    /**
+     * Publishes the routes of the vertices and names that changed, which takes as long as the changes are large.
+     */
+    void publish(Vertices vertices, Vertices.Changes changes) {
+        for (String name : changes.names()) {
+            var routes = vertices.getVerticesByName(name).stream()
+                    .map(IngressRoutes::route)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toUnmodifiableList());
+            if (routes.isEmpty()) {
+                routesByName.remove(name);
+            } else {
+                routesByName.put(name, routes);
+            }
+        }
+        for (String vertexId : changes.ids()) {
+            var route = route(vertices.getVertexDescriptionById(vertexId));
+            if (route == null) {
+                routesByVertexId.remove(vertexId);
+            } else {
+                routesByVertexId.put(vertexId, route);
+            }
+        }
+    }
+
+    void publish(Ingest ingest) {
+        ingestBySessionId.put(ingest.sessionId(), ingest);
+    }
+
+    void remove(String sessionId) {
+        ingestBySessionId.remove(sessionId);
+    }
+}
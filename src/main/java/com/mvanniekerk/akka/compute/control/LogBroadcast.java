@@ -0,0 +1,77 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Sends the log of one vertex to every web socket that is subscribed to it. Each log message is encoded once, for
+ * all sockets. A socket that subscribes later first gets the recent history.
+ */
+public class LogBroadcast extends AbstractBehavior<LogBroadcast.Message> {
+    private static final int MAX_HISTORY = 100;
+
+    public interface Message {}
+
+    public record AddSocket(String sessionId, ActorRef<WebSocketMessage> socket) implements Message {}
+    public record RemoveSocket(String sessionId) implements Message {}
+    private record WrappedLog(CoreLog.LogMessages messages) implements Message {}
+
+    /**
+     * Hands the hub the listener to subscribe to the vertex with, once the broadcast has started.
+     */
+    public static Behavior<Message> create(String vertexId, ActorRef<SocketHub.Message> hub) {
+        return Behaviors.setup(context -> new LogBroadcast(context, vertexId, hub));
+    }
+
+    private final Map<String, ActorRef<WebSocketMessage>> socketsBySessionId = new HashMap<>();
+    private final Queue<WebSocketMessage.Shared> history = new ArrayDeque<>();
+
+    private LogBroadcast(ActorContext<Message> context, String vertexId, ActorRef<SocketHub.Message> hub) {
+        super(context);
+        var listener = context.messageAdapter(CoreLog.LogMessages.class, WrappedLog::new);
+        hub.tell(new SocketHub.LogListener(vertexId, context.getSelf(), listener));
+    }
+
+    @Override
+    public Receive<Message> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(AddSocket.class, msg -> {
+                    socketsBySessionId.put(msg.sessionId(), msg.socket());
+                    if (!history.isEmpty()) {
+                        msg.socket().tell(new WebSocketMessage.LogLines(List.copyOf(history)));
+                    }
+                    return this;
+                })
+                .onMessage(RemoveSocket.class, msg -> {
+                    socketsBySessionId.remove(msg.sessionId());
+                    return this;
+                })
+                .onMessage(WrappedLog.class, msg -> {
+                    var lines = new ArrayList<WebSocketMessage.Shared>(msg.messages().messages().size());
+                    for (CoreLog.LogMessage message : msg.messages().messages()) {
+                        var line = new WebSocketMessage.Shared(message);
+                        if (history.size() == MAX_HISTORY) {
+                            history.poll();
+                        }
+                        history.add(line);
+                        lines.add(line);
+                    }
+                    var logLines = new WebSocketMessage.LogLines(lines);
+                    socketsBySessionId.values().forEach(socket -> socket.tell(logLines));
+                    return this;
+                })
+                .build();
+    }
+}
@@ -0,0 +1,171 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.*;
+import com.mvanniekerk.akka.compute.dispatch.InstrumentedExecutor;
+import com.mvanniekerk.akka.compute.metrics.MetricsRegistry;
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Pushes the metrics of the vertices to the control web sockets. The vertices publish their metrics into the
+ * {@link MetricsRegistry} when they change; every push interval the collector sends the vertices that changed since
+ * the previous push, so a vertex that changed several times in between is sent once. A socket gets the full set of
+ * its vertices when it connects or changes its subscription, and only changes after that.
+ */
+public class MetricsCollector extends AbstractBehavior<MetricsCollector.Message> {
+    public interface Message {}
+
+    public record AddSession(String sessionId, ActorRef<WebSocketMessage> socket) implements Message {}
+    public record RemoveSession(String sessionId) implements Message {}
+    /**
+     * @param vertexIds the vertices to send the metrics of, or null for all vertices
+     */
+    public record Subscribe(String sessionId, Set<String> vertexIds) implements Message {}
+    private record Push() implements Message {}
+
+    /**
+     * @param removed the vertices that no longer exist
+     */
+    public record MetricsUpdate(Map<String, CoreMetrics.Metrics> metricsByVertexId,
+                                Map<String, Map<Integer, CoreMetrics.Metrics>> instanceMetricsByVertexId,
+                                Map<String, InstrumentedExecutor.Stats> dispatchers,
+                                Set<String> removed) {
+
+        /**
+         * This update followed by the later one, as if only a single update had been sent.
+         */
+        public MetricsUpdate then(MetricsUpdate later) {
+            var metrics = new HashMap<>(metricsByVertexId);
+            var instanceMetrics = new HashMap<>(instanceMetricsByVertexId);
+            var removedIds = new HashSet<>(removed);
+            later.metricsByVertexId.forEach((vertexId, vertexMetrics) -> {
+                metrics.put(vertexId, vertexMetrics);
+                instanceMetrics.remove(vertexId);
+                removedIds.remove(vertexId);
+            });
+            instanceMetrics.putAll(later.instanceMetricsByVertexId);
+            later.removed.forEach(vertexId -> {
+                metrics.remove(vertexId);
+                instanceMetrics.remove(vertexId);
+                removedIds.add(vertexId);
+            });
+            return new MetricsUpdate(metrics, instanceMetrics, later.dispatchers, removedIds);
+        }
+    }
+
+    private record Session(ActorRef<WebSocketMessage> socket, Set<String> vertexIds) {
+        boolean isSubscribed(String vertexId) {
+            return vertexIds == null || vertexIds.contains(vertexId);
+        }
+    }
+
+    public static Behavior<Message> create() {
+        return Behaviors.setup(context ->
+                Behaviors.withTimers(scheduler -> new MetricsCollector(context, scheduler)));
+    }
+
+    private final MetricsRegistry registry;
+    private final Map<String, Session> sessionsById = new HashMap<>();
+    private Map<String, InstrumentedExecutor.Stats> pushedDispatchers = Map.of();
+
+    private MetricsCollector(ActorContext<Message> context, TimerScheduler<Message> scheduler) {
+        super(context);
+        registry = MetricsRegistry.get(context.getSystem());
+        Duration interval = context.getSystem().settings().config().getDuration("vertex.metrics.push-interval");
+        scheduler.startTimerAtFixedRate(new Push(), interval);
+    }
+
+    @Override
+    public Receive<Message> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(AddSession.class, msg -> {
+                    var session = new Session(msg.socket(), null);
+                    sessionsById.put(msg.sessionId(), session);
+                    sendAll(session);
+                    return this;
+                })
+                .onMessage(RemoveSession.class, msg -> {
+                    sessionsById.remove(msg.sessionId());
+                    return this;
+                })
+                .onMessage(Subscribe.class, msg -> {
+                    var previous = sessionsById.get(msg.sessionId());
+                    if (previous != null) {
+                        var session = new Session(previous.socket(), msg.vertexIds());
+                        sessionsById.put(msg.sessionId(), session);
+                        sendAll(session);
+                    }
+                    return this;
+                })
+                .onMessage(Push.class, msg -> {
+                    push();
+                    return this;
+                })
+                .build();
+    }
+
+    private void sendAll(Session session) {
+        var vertexIds = registry.vertexIds();
+        vertexIds.removeIf(vertexId -> !session.isSubscribed(vertexId));
+        var update = update(vertexIds, InstrumentedExecutor.peek());
+        session.socket().tell(new WebSocketMessage.Metrics("metrics", new WebSocketMessage.Shared(update)));
+    }
+
+    private void push() {
+        var changed = registry.drainChanged();
+        var dispatchers = InstrumentedExecutor.snapshot();
+        var dispatchersChanged = !dispatchers.equals(pushedDispatchers);
+        pushedDispatchers = dispatchers;
+        if (changed.isEmpty() && !dispatchersChanged) {
+            return;
+        }
+        var update = update(changed, dispatchers);
+        // Encoded once for all the sockets that get every vertex.
+        var shared = new WebSocketMessage.Shared(update);
+        for (Session session : sessionsById.values()) {
+            if (session.vertexIds() == null) {
+                session.socket().tell(new WebSocketMessage.Metrics("metricsDelta", shared));
+                continue;
+            }
+            var filtered = filter(update, session);
+            if (dispatchersChanged || !filtered.metricsByVertexId().isEmpty() || !filtered.removed().isEmpty()) {
+                var metrics = new WebSocketMessage.Metrics("metricsDelta", new WebSocketMessage.Shared(filtered));
+                session.socket().tell(metrics);
+            }
+        }
+    }
+
+    private MetricsUpdate update(Set<String> vertexIds, Map<String, InstrumentedExecutor.Stats> dispatchers) {
+        var metrics = new HashMap<String, CoreMetrics.Metrics>();
+        var instanceMetrics = new HashMap<String, Map<Integer, CoreMetrics.Metrics>>();
+        var removed = new HashSet<String>();
+        for (String vertexId : vertexIds) {
+            var samples = registry.samples(vertexId);
+            if (samples.isEmpty()) {
+                removed.add(vertexId);
+                continue;
+            }
+            var byInstance = new TreeMap<Integer, CoreMetrics.Metrics>();
+            samples.forEach((instance, sample) -> byInstance.put(instance, sample.metrics()));
+            metrics.put(vertexId, byInstance.values().stream().reduce(CoreMetrics.Metrics::combine).orElseThrow());
+            if (byInstance.size() > 1) {
+                instanceMetrics.put(vertexId, byInstance);
+            }
+        }
+        return new MetricsUpdate(metrics, instanceMetrics, dispatchers, removed);
+    }
+
+    private static MetricsUpdate filter(MetricsUpdate update, Session session) {
+        var metrics = new HashMap<>(update.metricsByVertexId());
+        metrics.keySet().removeIf(vertexId -> !session.isSubscribed(vertexId));
+        var instanceMetrics = new HashMap<>(update.instanceMetricsByVertexId());
+        instanceMetrics.keySet().removeIf(vertexId -> !session.isSubscribed(vertexId));
+        var removed = new HashSet<>(update.removed());
+        removed.removeIf(vertexId -> !session.isSubscribed(vertexId));
+        return new MetricsUpdate(metrics, instanceMetrics, update.dispatchers(), removed);
+    }
+}
@@ -0,0 +1,146 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@code /ws} sockets of one node, and the logs and metrics they are subscribed to. The vertices are reached
+ * through the {@link IngressRoutes}, so that a subscription follows its vertex to another actor, or another node, when
+ * the routes change. The metrics are those of the vertices that run on this node.
+ */
+public class SocketHub extends AbstractBehavior<SocketHub.Message> {
+    public interface Message {}
+
+    public record LogListener(String vertexId, ActorRef<LogBroadcast.Message> broadcast,
+                              ActorRef<CoreLog.LogMessages> listener) implements Message {}
+    /**
+     * Sent after new routes are published.
+     */
+    public record RoutesChanged() implements Message {}
+
+    public static Behavior<Message> create() {
+        return Behaviors.setup(SocketHub::new);
+    }
+
+    private final IngressRoutes routes;
+    private final ActorRef<MetricsCollector.Message> metricsCollector;
+    private final Map<String, String> subscriptionsBySessionId = new HashMap<>();
+    private final Map<String, Set<String>> sessionsByVertexId = new HashMap<>();
+    private final Map<String, ActorRef<WebSocketMessage>> socketsBySessionId = new HashMap<>();
+    private final Map<String, ActorRef<LogBroadcast.Message>> logBroadcastsByVertexId = new HashMap<>();
+    private final Map<String, ActorRef<CoreLog.LogMessages>> logListenersByVertexId = new HashMap<>();
+    private final Map<String, IngressRoutes.Route> subscribedRoutesByVertexId = new HashMap<>();
+
+    private SocketHub(ActorContext<Message> context) {
+        super(context);
+        routes = IngressRoutes.get(context.getSystem());
+        metricsCollector = context.spawnAnonymous(MetricsCollector.create());
+    }
+
+    @Override
+    public Receive<Message> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Control.LogSubscribe.class, msg -> {
+                    var subscription = subscriptionsBySessionId.remove(msg.sessionId());
+                    if (subscription != null) {
+                        // close previous subscription, if it exists.
+                        unsubscribeLog(msg.sessionId(), subscription);
+                    }
+                    if (msg.id() != null) {
+                        subscriptionsBySessionId.put(msg.sessionId(), msg.id());
+                        sessionsByVertexId.computeIfAbsent(msg.id(), id -> new HashSet<>()).add(msg.sessionId());
+                        var broadcast = logBroadcastsByVertexId.computeIfAbsent(msg.id(), id ->
+                                getContext().spawnAnonymous(LogBroadcast.create(id, getContext().getSelf())));
+                        var socket = socketsBySessionId.get(msg.sessionId());
+                        if (socket != null) {
+                            broadcast.tell(new LogBroadcast.AddSocket(msg.sessionId(), socket));
+                        }
+                    } else {
+                        // socket closed, clean up session
+                        socketsBySessionId.remove(msg.sessionId());
+                        metricsCollector.tell(new MetricsCollector.RemoveSession(msg.sessionId()));
+                    }
+                    return this;
+                })
+                .onMessage(Control.MetricsSubscribe.class, msg -> {
+                    metricsCollector.tell(new MetricsCollector.Subscribe(msg.sessionId(), msg.vertexIds()));
+                    return this;
+                })
+                .onMessage(LogListener.class, msg -> {
+                    // The broadcast may have been stopped before it got to start.
+                    if (msg.broadcast().equals(logBroadcastsByVertexId.get(msg.vertexId()))) {
+                        logListenersByVertexId.put(msg.vertexId(), msg.listener());
+                        subscribeLog(msg.vertexId());
+                    }
+                    return this;
+                })
+                .onMessage(Control.RegisterControlWebSocket.class, msg -> {
+                    getContext().getLog().info("Register ws: {}", msg);
+                    socketsBySessionId.put(msg.sessionId(), msg.socket());
+                    // The subscription may have come in before the socket was registered.
+                    var subscription = subscriptionsBySessionId.get(msg.sessionId());
+                    if (subscription != null) {
+                        logBroadcastsByVertexId.get(subscription)
+                                .tell(new LogBroadcast.AddSocket(msg.sessionId(), msg.socket()));
+                    }
+                    metricsCollector.tell(new MetricsCollector.AddSession(msg.sessionId(), msg.socket()));
+                    return this;
+                })
+                .onMessage(RoutesChanged.class, msg -> {
+                    List.copyOf(logListenersByVertexId.keySet()).forEach(this::subscribeLog);
+                    return this;
+                })
+                .build();
+    }
+
+    /**
+     * Subscribes the listener of the vertex through its current route, unless it already is. A vertex that is started
+     * fresh, after it was deleted and created again or moved to another actor, has no log subscribers yet. A vertex
+     * without a route, or that is moving to another node, keeps its subscribers waiting until it runs again.
+     */
+    private void subscribeLog(String vertexId) {
+        var route = routes.route(vertexId);
+        if (route == null || route.paused()) {
+            subscribedRoutesByVertexId.remove(vertexId);
+        } else if (!route.equals(subscribedRoutesByVertexId.get(vertexId))) {
+            route.tell(new CoreLog.SubscribeLog(logListenersByVertexId.get(vertexId)));
+            subscribedRoutesByVertexId.put(vertexId, route);
+        }
+    }
+
+    /**
+     * The vertex keeps sending its log to the broadcast while any other session is still subscribed to it.
+     */
+    private void unsubscribeLog(String sessionId, String vertexId) {
+        var sessions = sessionsByVertexId.get(vertexId);
+        if (sessions == null) {
+            return;
+        }
+        sessions.remove(sessionId);
+        if (sessions.isEmpty()) {
+            sessionsByVertexId.remove(vertexId);
+            var broadcast = logBroadcastsByVertexId.remove(vertexId);
+            if (broadcast != null) {
+                getContext().stop(broadcast);
+            }
+            var listener = logListenersByVertexId.remove(vertexId);
+            var route = subscribedRoutesByVertexId.remove(vertexId);
+            if (listener != null && route != null) {
+                route.tell(new CoreLog.UnsubscribeLog(listener));
+            }
+        } else {
+            logBroadcastsByVertexId.get(vertexId).tell(new LogBroadcast.RemoveSocket(sessionId));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.NotUsed;
+import akka.http.javadsl.model.ws.Message;
+import akka.stream.javadsl.Flow;
+import akka.util.ByteString;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * What is waiting to be sent to one {@code /ws} socket while the socket is slower than the messages come in. Metrics
+ * updates are merged, so that only the latest metrics of every vertex are sent, and log lines are sent in batches.
+ * When more log lines are waiting than fit, the oldest are dropped, and the client is told how many with a
+ * "dropped" message.
+ */
+public final class SocketOutbox {
+    public record Dropped(long logLines) {}
+
+    /**
+     * Encodes the messages for the socket, merging everything that arrives while the socket is busy.
+     */
+    public static Flow<WebSocketMessage, Message, NotUsed> flow(WebSocketEncoding encoding, int maxLogLines) {
+        return Flow.<WebSocketMessage>create()
+                .conflateWithSeed(message -> new SocketOutbox(maxLogLines).add(message), SocketOutbox::add)
+                .mapConcat(outbox -> outbox.frames(encoding));
+    }
+
+    private final int maxLogLines;
+    private final Deque<WebSocketMessage.Shared> logLines = new ArrayDeque<>();
+    private long droppedLogLines = 0;
+    private String metricsType;
+    private WebSocketMessage.Shared metrics;
+
+    private SocketOutbox(int maxLogLines) {
+        this.maxLogLines = maxLogLines;
+    }
+
+    private SocketOutbox add(WebSocketMessage message) {
+        if (message instanceof WebSocketMessage.LogLines lines) {
+            for (WebSocketMessage.Shared line : lines.lines()) {
+                if (logLines.size() == maxLogLines) {
+                    logLines.poll();
+                    droppedLogLines++;
+                }
+                logLines.add(line);
+            }
+        } else if (message instanceof WebSocketMessage.Metrics update) {
+            // A delta on top of a full set is still a full set.
+            if (metrics == null || update.type().equals("metrics")) {
+                metricsType = update.type();
+                metrics = update.update();
+            } else {
+                var merged = ((MetricsCollector.MetricsUpdate) metrics.value())
+                        .then((MetricsCollector.MetricsUpdate) update.update().value());
+                metrics = new WebSocketMessage.Shared(merged);
+            }
+        }
+        return this;
+    }
+
+    private List<Message> frames(WebSocketEncoding encoding) {
+        var frames = new ArrayList<Message>(3);
+        if (droppedLogLines > 0) {
+            var dropped = encoding.encode(new Dropped(droppedLogLines));
+            frames.add(encoding.frame(encoding.message("dropped", dropped)));
+        }
+        if (logLines.size() == 1) {
+            frames.add(encoding.frame(encoding.message("log", logLines.peek().encoded(encoding))));
+        } else if (logLines.size() > 1) {
+            var lines = new ArrayList<ByteString>(logLines.size());
+            logLines.forEach(line -> lines.add(line.encoded(encoding)));
+            frames.add(encoding.frame(encoding.message("logBatch", encoding.array(lines))));
+        }
+        if (metrics != null) {
+            frames.add(encoding.frame(encoding.message(metricsType, metrics.encoded(encoding))));
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,109 @@
+package com.mvanniekerk.akka.compute.control;
+
+import akka.http.javadsl.model.ws.BinaryMessage;
+import akka.http.javadsl.model.ws.Message;
+import akka.http.javadsl.model.ws.TextMessage;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import com.mvanniekerk.akka.compute.util.Codecs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How the messages on a {@code /ws} socket are encoded: JSON text frames, or CBOR binary frames. Every message is a
+ * {@code {"type", "content"}} object. Frames are put together from contents that were encoded before, so that a
+ * content shared by many sockets is encoded only once.
+ */
+public enum WebSocketEncoding {
+    JSON {
+        @Override
+        ByteString encode(Object value) {
+            return ByteString.fromArrayUnsafe(Codecs.writeValueAsBytes(value));
+        }
+
+        @Override
+        ByteString message(String type, ByteString content) {
+            return ByteString.fromString("{\"type\":\"" + type + "\",\"content\":")
+                    .concat(content)
+                    .concat(ByteString.fromString("}"));
+        }
+
+        @Override
+        ByteString array(List<ByteString> elements) {
+            var builder = new ByteStringBuilder().putByte((byte) '[');
+            for (int i = 0; i < elements.size(); i++) {
+                if (i > 0) {
+                    builder.putByte((byte) ',');
+                }
+                builder.append(elements.get(i));
+            }
+            return builder.putByte((byte) ']').result();
+        }
+
+        @Override
+        Message frame(ByteString message) {
+            return TextMessage.create(message.utf8String());
+        }
+    },
+    CBOR {
+        private static final byte MAP_OF_TWO = (byte) 0xA2;
+        private static final byte TEXT = 0x60;
+        private static final byte ARRAY_START = (byte) 0x9F;
+        private static final byte BREAK = (byte) 0xFF;
+
+        @Override
+        ByteString encode(Object value) {
+            return ByteString.fromArrayUnsafe(Codecs.writeValueAsCbor(value));
+        }
+
+        @Override
+        ByteString message(String type, ByteString content) {
+            var builder = new ByteStringBuilder().putByte(MAP_OF_TWO);
+            text(builder, "type");
+            text(builder, type);
+            text(builder, "content");
+            return builder.append(content).result();
+        }
+
+        /**
+         * An indefinite length array, so that the encoded elements can simply be put one after the other.
+         */
+        @Override
+        ByteString array(List<ByteString> elements) {
+            var builder = new ByteStringBuilder().putByte(ARRAY_START);
+            elements.forEach(builder::append);
+            return builder.putByte(BREAK).result();
+        }
+
+        @Override
+        Message frame(ByteString message) {
+            return BinaryMessage.create(message);
+        }
+
+        /**
+         * Only for the short ASCII keys and types of the messages.
+         */
+        private static void text(ByteStringBuilder builder, String text) {
+            var bytes = text.getBytes(StandardCharsets.US_ASCII);
+            builder.putByte((byte) (TEXT | bytes.length)).putBytes(bytes);
+        }
+    };
+
+    public static WebSocketEncoding parse(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown encoding " + name + ", expected json or cbor");
+        }
+    }
+
+    abstract ByteString encode(Object value);
+
+    abstract ByteString message(String type, ByteString content);
+
+    abstract ByteString array(List<ByteString> elements);
+
+    abstract Message frame(ByteString message);
+}
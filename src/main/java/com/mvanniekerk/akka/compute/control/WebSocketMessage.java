@@ -1,8 +1,51 @@
 package com.mvanniekerk.akka.compute.control;
 
-import com.mvanniekerk.akka.compute.vertex.CoreLog;
+import akka.util.ByteString;
+
+import java.util.List;
 
 public interface WebSocketMessage {
-    record Log(String type, CoreLog.LogMessage content) implements WebSocketMessage {}
-    record MetricsAggregate(String type, Control.VertexMetricsAggregator content) implements WebSocketMessage {}
+    /**
+     * Lines of the log of a vertex, each a {@link com.mvanniekerk.akka.compute.vertex.CoreLog.LogMessage}.
+     */
+    record LogLines(List<Shared> lines) implements WebSocketMessage {}
+    /**
+     * The type is "metrics" for the full set of subscribed vertices, and "metricsDelta" for the vertices that changed.
+     */
+    record Metrics(String type, Shared update) implements WebSocketMessage {}
+
+    /**
+     * Content that is sent to many sockets. It is encoded once per encoding, by the first socket that sends it.
+     */
+    final class Shared {
+        private final Object value;
+        private volatile ByteString json;
+        private volatile ByteString cbor;
+
+        public Shared(Object value) {
+            this.value = value;
+        }
+
+        public Object value() {
+            return value;
+        }
+
+        ByteString encoded(WebSocketEncoding encoding) {
+            // Encoding twice in a race is harmless, both results are the same.
+            if (encoding == WebSocketEncoding.JSON) {
+                var result = json;
+                if (result == null) {
+                    result = encoding.encode(value);
+                    json = result;
+                }
+                return result;
+            }
+            var result = cbor;
+            if (result == null) {
+                result = encoding.encode(value);
+                cbor = result;
+            }
+            return result;
+        }
+    }
 }
@@ -1,3 +1,7 @@
 package com.mvanniekerk.akka.compute.control.graph;
 
-public record Edge(String id, String from, String to) {}
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.mvanniekerk.akka.compute.vertex.Batching;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record Edge(String id, String from, String to, Batching batching) {}
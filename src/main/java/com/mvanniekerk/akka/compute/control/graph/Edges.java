@@ -0,0 +1,64 @@
+package com.mvanniekerk.akka.compute.control.graph;
+
+import java.util.*;
+
+/**
+ * The edges of the graph, indexed by their source and by their target, so that the edges of a vertex can be found
+ * without looking at the rest of the graph.
+ */
+public class Edges {
+    private final Map<String, Edge> edgesById = new HashMap<>();
+    private final Map<String, Map<String, Edge>> outgoingByVertexId = new HashMap<>();
+    private final Map<String, Map<String, Edge>> incomingByVertexId = new HashMap<>();
+
+    public void addEdge(Edge edge) {
+        removeEdge(edge.id());
+        edgesById.put(edge.id(), edge);
+        outgoingByVertexId.computeIfAbsent(edge.from(), k -> new LinkedHashMap<>()).put(edge.id(), edge);
+        incomingByVertexId.computeIfAbsent(edge.to(), k -> new LinkedHashMap<>()).put(edge.id(), edge);
+    }
+
+    public Edge removeEdge(String id) {
+        var removed = edgesById.remove(id);
+        if (removed != null) {
+            removeFromIndex(outgoingByVertexId, removed.from(), id);
+            removeFromIndex(incomingByVertexId, removed.to(), id);
+        }
+        return removed;
+    }
+
+    private static void removeFromIndex(Map<String, Map<String, Edge>> index, String vertexId, String edgeId) {
+        var edges = index.get(vertexId);
+        edges.remove(edgeId);
+        if (edges.isEmpty()) {
+            index.remove(vertexId);
+        }
+    }
+
+    public Edge getEdge(String id) {
+        return edgesById.get(id);
+    }
+
+    public Collection<Edge> getOutgoing(String vertexId) {
+        var edges = outgoingByVertexId.get(vertexId);
+        return edges == null ? List.of() : Collections.unmodifiableCollection(edges.values());
+    }
+
+    public Collection<Edge> getIncoming(String vertexId) {
+        var edges = incomingByVertexId.get(vertexId);
+        return edges == null ? List.of() : Collections.unmodifiableCollection(edges.values());
+    }
+
+    /**
+     * The edges from and to the vertex, a loop only once.
+     */
+    public Set<Edge> getTouching(String vertexId) {
+        var edges = new LinkedHashSet<>(getOutgoing(vertexId));
+        edges.addAll(getIncoming(vertexId));
+        return edges;
+    }
+
+    public Collection<Edge> getAll() {
+        return Collections.unmodifiableCollection(edgesById.values());
+    }
+}
@@ -0,0 +1,72 @@
+package com.mvanniekerk.akka.compute.control.graph;
+
+import java.util.*;
+
+/**
+ * Finds the chains of vertices that can be fused into a single actor. An edge can be fused when its source has no
+ * other outgoing edges and its target has no other incoming edges, and both ends run as a single instance on the same
+ * dispatcher. Chains that form a cycle are not fused.
+ */
+public class LinearChains {
+
+    private LinearChains() {
+    }
+
+    /**
+     * The chains that contain any of the candidate vertices. Only the neighbourhood of the candidates is looked at.
+     */
+    public static List<List<Vertex>> find(Collection<String> candidateIds, Vertices vertices, Edges edges) {
+        List<List<Vertex>> chains = new ArrayList<>();
+        Set<String> covered = new HashSet<>();
+        for (String candidateId : candidateIds) {
+            if (covered.contains(candidateId) || vertices.getVertexDescriptionById(candidateId) == null) {
+                continue;
+            }
+            var head = findHead(candidateId, vertices, edges);
+            if (head == null) {
+                covered.add(candidateId);
+                continue;
+            }
+            List<Vertex> chain = new ArrayList<>(List.of(head));
+            covered.add(head.getId());
+            var out = edges.getOutgoing(head.getId());
+            while (out.size() == 1 && canFuse(out.iterator().next(), vertices, edges)) {
+                var next = vertices.getVertexDescriptionById(out.iterator().next().to());
+                chain.add(next);
+                covered.add(next.getId());
+                out = edges.getOutgoing(next.getId());
+            }
+            if (chain.size() > 1) {
+                chains.add(chain);
+            }
+        }
+        return chains;
+    }
+
+    /**
+     * Walks back from the vertex to the start of its chain, or returns null when the chain is a cycle.
+     */
+    private static Vertex findHead(String vertexId, Vertices vertices, Edges edges) {
+        Set<String> seen = new HashSet<>(Set.of(vertexId));
+        var head = vertexId;
+        var in = edges.getIncoming(head);
+        while (in.size() == 1 && canFuse(in.iterator().next(), vertices, edges)) {
+            head = in.iterator().next().from();
+            if (!seen.add(head)) {
+                return null;
+            }
+            in = edges.getIncoming(head);
+        }
+        return vertices.getVertexDescriptionById(head);
+    }
+
+    private static boolean canFuse(Edge edge, Vertices vertices, Edges edges) {
+        var from = vertices.getVertexDescriptionById(edge.from());
+        var to = vertices.getVertexDescriptionById(edge.to());
+        return from != null && to != null && !from.getId().equals(to.getId())
+                && from.getInstances() == 1 && to.getInstances() == 1
+                && Objects.equals(from.getDispatcher(), to.getDispatcher())
+                && edges.getOutgoing(edge.from()).size() == 1
+                && edges.getIncoming(edge.to()).size() == 1;
+    }
+}
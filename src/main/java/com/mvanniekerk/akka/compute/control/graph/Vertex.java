@@ -1,19 +1,29 @@
 package com.mvanniekerk.akka.compute.control.graph;
 
 import akka.actor.typed.ActorRef;
+import com.mvanniekerk.akka.compute.vertex.CoreControl;
+import com.mvanniekerk.akka.compute.vertex.Deployment;
 import com.mvanniekerk.akka.compute.vertex.VertexDescription;
 import com.mvanniekerk.akka.compute.vertex.VertexMessage;
 
 public class Vertex {
     private final String id;
-    private final ActorRef<VertexMessage> actor;
+    private final Deployment deployment;
+    private final String dispatcher;
+
+    private ActorRef<VertexMessage> actor;
+    private boolean hosted = false;
+    private boolean moving = false;
 
     private String name;
     private String code;
 
-    public Vertex(ActorRef<VertexMessage> vertex, String id, String name, String code) {
+    public Vertex(ActorRef<VertexMessage> vertex, String id, String name, String code, Deployment deployment,
+                  String dispatcher) {
         this.id = id;
         this.actor = vertex;
+        this.deployment = deployment;
+        this.dispatcher = dispatcher;
         this.name = name;
         this.code = code;
     }
@@ -26,6 +36,64 @@ public class Vertex {
         return actor;
     }
 
+    /**
+     * Moves the vertex to another actor, through {@link Vertices#setActor}. A hosted vertex is a stage of a fused
+     * chain that runs inside the actor of the head of the chain.
+     */
+    void setActor(ActorRef<VertexMessage> actor, boolean hosted) {
+        this.actor = actor;
+        this.hosted = hosted;
+    }
+
+    public boolean isHosted() {
+        return hosted;
+    }
+
+    /**
+     * A vertex moves to another node of a cluster from when its sources pause their edges to it until it runs there.
+     */
+    void setMoving(boolean moving) {
+        this.moving = moving;
+    }
+
+    public boolean isMoving() {
+        return moving;
+    }
+
+    /**
+     * A vertex of a cluster has no actor until its entity has started. What it misses in the meantime is part of what
+     * it gets when it starts.
+     */
+    public boolean isRunning() {
+        return actor != null;
+    }
+
+    public void tell(VertexMessage message) {
+        if (actor != null) {
+            actor.tell(hosted ? new CoreControl.Staged(id, message) : message);
+        }
+    }
+
+    public Deployment getDeployment() {
+        return deployment;
+    }
+
+    public int getInstances() {
+        return deployment == null ? 1 : deployment.instances();
+    }
+
+    /**
+     * The dispatcher the vertex was spawned on, or null for the default dispatcher. It does not change when new code
+     * is loaded.
+     */
+    public String getDispatcher() {
+        return dispatcher;
+    }
+
+    public boolean isPartitioned() {
+        return deployment != null && deployment.partitionKey() != null;
+    }
+
     public String getName() {
         return name;
     }
@@ -34,12 +102,16 @@ public class Vertex {
         this.name = name;
     }
 
+    public String getCode() {
+        return code;
+    }
+
     public void setCode(String code) {
         this.code = code;
     }
 
     public VertexDescription describe() {
-        return new VertexDescription(id, name, code);
+        return new VertexDescription(id, name, code, deployment);
     }
 
     @Override
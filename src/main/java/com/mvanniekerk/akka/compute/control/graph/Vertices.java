@@ -9,6 +9,17 @@ import java.util.stream.Collectors;
 public class Vertices {
     private final Map<String, Vertex> verticesById = new HashMap<>();
     private final Map<String, List<Vertex>> verticesByName = new HashMap<>();
+    private Set<String> changedIds = new HashSet<>();
+    private Set<String> changedNames = new HashSet<>();
+
+    /**
+     * The vertices whose route may have changed, by id, and the names whose list of routes may have changed.
+     */
+    public record Changes(Set<String> ids, Set<String> names) {
+        public boolean isEmpty() {
+            return ids.isEmpty() && names.isEmpty();
+        }
+    }
 
     public void addVertex(Vertex vertex) {
         if (verticesById.containsKey(vertex.getId())) {
@@ -16,17 +27,48 @@ public class Vertices {
         }
         verticesById.put(vertex.getId(), vertex);
         verticesByName.computeIfAbsent(vertex.getName(), k -> new ArrayList<>()).add(vertex);
+        changed(vertex.getId(), vertex.getName());
     }
 
     public Vertex removeVertex(String id) {
         var removed = verticesById.remove(id);
         var vertices = verticesByName.get(removed.getName());
         vertices.removeIf(vertex -> vertex.getId().equals(id));
+        if (vertices.isEmpty()) {
+            verticesByName.remove(removed.getName());
+        }
+        changed(id, removed.getName());
         return removed;
     }
 
+    public void setActor(Vertex vertex, ActorRef<VertexMessage> actor, boolean hosted) {
+        vertex.setActor(actor, hosted);
+        changed(vertex.getId(), vertex.getName());
+    }
+
+    public void setMoving(Vertex vertex, boolean moving) {
+        vertex.setMoving(moving);
+        changed(vertex.getId(), vertex.getName());
+    }
+
+    private void changed(String id, String name) {
+        changedIds.add(id);
+        changedNames.add(name);
+    }
+
+    /**
+     * Returns what changed since the last call, so that only the routes of those vertices are published again.
+     */
+    public Changes takeChanges() {
+        // New sets rather than clearing the old ones, which takes as long as the largest change ever was.
+        var changes = new Changes(Collections.unmodifiableSet(changedIds), Collections.unmodifiableSet(changedNames));
+        changedIds = new HashSet<>();
+        changedNames = new HashSet<>();
+        return changes;
+    }
+
     public List<Vertex> getVerticesByName(String name) {
-        return verticesByName.get(name);
+        return verticesByName.getOrDefault(name, List.of());
     }
 
     public ActorRef<VertexMessage> getVertexById(String id) {
@@ -37,8 +79,8 @@ public class Vertices {
         return verticesById.get(id);
     }
 
-    public List<Vertex> getAll() {
-        return new ArrayList<>(verticesById.values());
+    public Collection<Vertex> getAll() {
+        return Collections.unmodifiableCollection(verticesById.values());
     }
 
     public Vertex changeVertexName(String id, String newName) {
@@ -46,8 +88,13 @@ public class Vertices {
         var oldName = updated.getName();
         var vertices = verticesByName.get(oldName);
         vertices.removeIf(vertex -> vertex.getId().equals(id));
+        if (vertices.isEmpty()) {
+            verticesByName.remove(oldName);
+        }
         verticesByName.computeIfAbsent(newName, k -> new ArrayList<>()).add(updated);
         updated.setName(newName);
+        changed(id, oldName);
+        changedNames.add(newName);
         return updated;
     }
 
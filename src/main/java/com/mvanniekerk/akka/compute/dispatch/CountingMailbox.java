@@ -0,0 +1,83 @@
+package com.mvanniekerk.akka.compute.dispatch;
+
+import akka.actor.ActorPath;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An unbounded mailbox that keeps count of its messages, so that the depth of the mailbox of a vertex can be read
+ * without walking the queue.
+ */
+public class CountingMailbox implements MailboxType, ProducesMessageQueue<CountingMailbox.CountingMessageQueue> {
+    private static final Map<ActorPath, CountingMessageQueue> QUEUES_BY_OWNER = new ConcurrentHashMap<>();
+
+    public CountingMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    /**
+     * The number of messages waiting for the actor, or zero when it does not use this mailbox.
+     */
+    public static int depth(akka.actor.typed.ActorRef<?> owner) {
+        var queue = QUEUES_BY_OWNER.get(owner.path());
+        return queue == null ? 0 : queue.numberOfMessages();
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        var queue = new CountingMessageQueue();
+        if (owner.isDefined()) {
+            QUEUES_BY_OWNER.put(owner.get().path(), queue);
+        }
+        return queue;
+    }
+
+    public static class CountingMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            queue.add(handle);
+            size.incrementAndGet();
+        }
+
+        @Override
+        public Envelope dequeue() {
+            var envelope = queue.poll();
+            if (envelope != null) {
+                size.decrementAndGet();
+            }
+            return envelope;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return size.get();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            QUEUES_BY_OWNER.remove(owner.path(), this);
+            for (Envelope envelope = dequeue(); envelope != null; envelope = dequeue()) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+    }
+}
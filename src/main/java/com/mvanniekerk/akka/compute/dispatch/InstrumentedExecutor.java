@@ -0,0 +1,130 @@
+package com.mvanniekerk.akka.compute.dispatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An executor that counts the tasks waiting for a thread and the time its threads spend running them. Every instance
+ * is registered under the id of its dispatcher, so that the load of the dispatchers can be reported.
+ */
+public class InstrumentedExecutor extends AbstractExecutorService {
+    private static final Map<String, InstrumentedExecutor> EXECUTORS_BY_DISPATCHER = new ConcurrentHashMap<>();
+
+    /**
+     * @param queued      tasks submitted, but not yet running
+     * @param active      tasks running right now
+     * @param busySeconds the time spent running tasks, summed over all threads
+     * @param utilization the fraction of the threads that was busy since the previous snapshot
+     */
+    public record Stats(String kind, int threads, long queued, long active, long executed, double busySeconds,
+                        double utilization) {}
+
+    private final String dispatcherId;
+    private final String kind;
+    private final int threads;
+    private final ExecutorService delegate;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastBusyNanos = 0;
+
+    InstrumentedExecutor(String dispatcherId, String kind, int threads, ExecutorService delegate) {
+        this.dispatcherId = dispatcherId;
+        this.kind = kind;
+        this.threads = threads;
+        this.delegate = delegate;
+        EXECUTORS_BY_DISPATCHER.put(dispatcherId, this);
+    }
+
+    /**
+     * Takes a snapshot of every dispatcher that currently has an executor, by dispatcher id.
+     */
+    public static Map<String, Stats> snapshot() {
+        return stats(true);
+    }
+
+    /**
+     * Like {@link #snapshot()}, but the next snapshot still reports the utilization since the previous one.
+     */
+    public static Map<String, Stats> peek() {
+        return stats(false);
+    }
+
+    private static Map<String, Stats> stats(boolean advance) {
+        var stats = new TreeMap<String, Stats>();
+        EXECUTORS_BY_DISPATCHER.forEach((id, executor) -> stats.put(id, executor.read(advance)));
+        return stats;
+    }
+
+    private synchronized Stats read(boolean advance) {
+        var now = System.nanoTime();
+        var busy = busyNanos.sum();
+        var elapsed = now - lastSnapshotNanos;
+        var utilization = elapsed == 0 ? 0.0 : (double) (busy - lastBusyNanos) / elapsed / threads;
+        if (advance) {
+            lastSnapshotNanos = now;
+            lastBusyNanos = busy;
+        }
+        return new Stats(kind, threads, queued.sum(), active.sum(), executed.sum(), busy / 1e9, utilization);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        queued.increment();
+        try {
+            delegate.execute(() -> run(command));
+        } catch (RuntimeException e) {
+            queued.decrement();
+            throw e;
+        }
+    }
+
+    private void run(Runnable command) {
+        queued.decrement();
+        active.increment();
+        var start = System.nanoTime();
+        try {
+            command.run();
+        } finally {
+            busyNanos.add(System.nanoTime() - start);
+            active.decrement();
+            executed.increment();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        EXECUTORS_BY_DISPATCHER.remove(dispatcherId, this);
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        EXECUTORS_BY_DISPATCHER.remove(dispatcherId, this);
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
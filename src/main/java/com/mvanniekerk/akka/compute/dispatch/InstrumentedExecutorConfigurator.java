@@ -0,0 +1,65 @@
+package com.mvanniekerk.akka.compute.dispatch;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+
+/**
+ * Builds the executors of the vertex dispatchers, configured by the {@code instrumented-executor} block of the
+ * dispatcher. The {@code kind} is one of:
+ * <ul>
+ *     <li>{@code thread-pool}: a fixed number of threads, for vertices that block</li>
+ *     <li>{@code fork-join}: a work stealing pool, for CPU bound vertices</li>
+ *     <li>{@code virtual}: a virtual thread per task, when the JVM supports it, otherwise a cached thread pool</li>
+ * </ul>
+ */
+public class InstrumentedExecutorConfigurator extends ExecutorServiceConfigurator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstrumentedExecutorConfigurator.class);
+
+    private final String kind;
+    private final int threads;
+
+    public InstrumentedExecutorConfigurator(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        var executorConfig = config.getConfig("instrumented-executor");
+        this.kind = executorConfig.getString("kind");
+        var configuredThreads = executorConfig.getInt("threads");
+        this.threads = configuredThreads > 0 ? configuredThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+        return () -> new InstrumentedExecutor(id, kind, threads, createDelegate(id, threadFactory));
+    }
+
+    private ExecutorService createDelegate(String id, ThreadFactory threadFactory) {
+        switch (kind) {
+            case "thread-pool":
+                return Executors.newFixedThreadPool(threads, threadFactory);
+            case "fork-join":
+                var workerFactory = threadFactory instanceof ForkJoinPool.ForkJoinWorkerThreadFactory factory
+                        ? factory
+                        : ForkJoinPool.defaultForkJoinWorkerThreadFactory;
+                return new ForkJoinPool(threads, workerFactory, null, true);
+            case "virtual":
+                return virtualThreadExecutor(id, threadFactory);
+            default:
+                throw new IllegalArgumentException("Unknown executor kind " + kind + " for dispatcher " + id);
+        }
+    }
+
+    private static ExecutorService virtualThreadExecutor(String id, ThreadFactory threadFactory) {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("Virtual threads are not available, dispatcher {} uses a cached thread pool", id);
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.mvanniekerk.akka.compute.dispatch;
+
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Props;
+import com.mvanniekerk.akka.compute.vertex.Deployment;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.regex.Pattern;
+
+/**
+ * The dispatchers a vertex can run on, configured under {@code vertex.dispatchers}. A vertex picks one in its
+ * deployment, or with {@code @dispatcher=<name>} anywhere in its code, for example in a comment. Vertices without one,
+ * or with an unknown one, run on the default dispatcher.
+ */
+public final class VertexDispatchers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VertexDispatchers.class);
+    private static final String CONFIG_PATH = "vertex.dispatchers";
+    private static final Pattern CODE_DIRECTIVE = Pattern.compile("@dispatcher=([\\w-]+)");
+
+    private VertexDispatchers() {
+    }
+
+    /**
+     * The name of the dispatcher of a vertex. The deployment wins over the code.
+     */
+    public static String resolve(Deployment deployment, String code) {
+        if (deployment != null && deployment.dispatcher() != null) {
+            return deployment.dispatcher();
+        }
+        if (code != null) {
+            var directive = CODE_DIRECTIVE.matcher(code);
+            if (directive.find()) {
+                return directive.group(1);
+            }
+        }
+        return null;
+    }
+
+    public static Props props(Config config, String dispatcher) {
+        if (dispatcher == null || dispatcher.isBlank() || dispatcher.equals("default")) {
+            return Props.empty();
+        }
+        var path = CONFIG_PATH + "." + dispatcher;
+        if (!config.hasPath(path)) {
+            LOGGER.warn("Unknown dispatcher {}, using the default dispatcher", dispatcher);
+            return Props.empty();
+        }
+        return DispatcherSelector.fromConfig(path);
+    }
+}
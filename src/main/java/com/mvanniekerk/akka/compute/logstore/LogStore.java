@@ -0,0 +1,173 @@
+package com.mvanniekerk.akka.compute.logstore;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The log history of every vertex, in memory-mapped segment files under {@code vertex.log-store.directory}, one
+ * directory per vertex. Vertices hand their formatted lines to a queue, and a single background thread writes them,
+ * so that logging never waits for the disk. When the queue is full, lines are dropped and counted. The oldest
+ * segments are deleted beyond the retention size or the retention time.
+ */
+public class LogStore implements Extension {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStore.class);
+    private static final long EXPIRE_INTERVAL_MILLIS = 10_000;
+
+    public static final ExtensionId<LogStore> ID = new ExtensionId<>() {
+        @Override
+        public LogStore createExtension(ActorSystem<?> system) {
+            var store = new LogStore(system.settings().config().getConfig("vertex.log-store"));
+            system.getWhenTerminated().thenRun(store::stop);
+            return store;
+        }
+    };
+
+    /**
+     * @param truncated whether there were more matching lines than the limit
+     * @param dropped   the lines dropped since the start because the queue was full
+     */
+    public record Query(List<CoreLog.LogMessage> lines, boolean truncated, long dropped) {}
+
+    private record Entry(String vertexId, long timestamp, CoreLog.Level level, String message) {}
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int maxLineBytes;
+    private final long retentionMillis;
+    private final BlockingQueue<Entry> queue;
+    private final Map<String, SegmentLog> logsByVertexId = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    private LogStore(Config config) {
+        enabled = config.getBoolean("enabled");
+        directory = Path.of(config.getString("directory"));
+        segmentSize = (int) config.getBytes("segment-size").longValue();
+        maxSegments = (int) Math.max(1, config.getBytes("retention-size") / segmentSize);
+        maxLineBytes = segmentSize / 4;
+        retentionMillis = config.getDuration("retention-time").toMillis();
+        queue = new ArrayBlockingQueue<>(config.getInt("queue-size"));
+        writer = new Thread(this::write, "vertex-log-store");
+        writer.setDaemon(true);
+        if (enabled) {
+            writer.start();
+        }
+    }
+
+    public static LogStore get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the line for writing, without waiting.
+     */
+    public void append(String vertexId, long timestamp, CoreLog.Level level, String message) {
+        if (enabled && !queue.offer(new Entry(vertexId, timestamp, level, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * The lines of the vertex between from and to, at or above the level, and containing the text when it is not
+     * null. The oldest lines come first. A vertex without stored lines has an empty result.
+     */
+    public Query query(String vertexId, Instant from, Instant to, CoreLog.Level level, String contains, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit cannot be negative: " + limit);
+        }
+        var lines = new ArrayList<CoreLog.LogMessage>();
+        var log = existingLog(vertexId);
+        if (log == null) {
+            return new Query(lines, false, dropped.get());
+        }
+        var needle = contains == null || contains.isEmpty() ? null : contains.getBytes(StandardCharsets.UTF_8);
+        var complete = log.query(from.toEpochMilli(), to.toEpochMilli(), level, needle, lines, limit);
+        return new Query(lines, !complete, dropped.get());
+    }
+
+    /**
+     * The log of the vertex, opening it when it was written before a restart, or null when the vertex has no stored
+     * lines. Unlike {@link #log}, this never creates a directory, so that queries for unknown ids leave nothing behind.
+     */
+    private SegmentLog existingLog(String vertexId) {
+        var log = logsByVertexId.get(vertexId);
+        if (log != null || !Files.isDirectory(directory.resolve(directoryName(vertexId)))) {
+            return log;
+        }
+        return log(vertexId);
+    }
+
+    private SegmentLog log(String vertexId) {
+        return logsByVertexId.computeIfAbsent(vertexId, id -> {
+            try {
+                return SegmentLog.open(id, directory.resolve(directoryName(id)), segmentSize, maxSegments);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static String directoryName(String vertexId) {
+        // Dots are encoded as well, so that no id can point outside the store.
+        return URLEncoder.encode(vertexId, StandardCharsets.UTF_8).replace(".", "%2E");
+    }
+
+    private void write() {
+        var lastExpired = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                var entry = queue.poll(EXPIRE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    var message = entry.message().getBytes(StandardCharsets.UTF_8);
+                    if (message.length > maxLineBytes) {
+                        message = Arrays.copyOf(message, maxLineBytes);
+                    }
+                    log(entry.vertexId()).append(entry.timestamp(), entry.level(), message);
+                }
+                var now = System.currentTimeMillis();
+                if (now - lastExpired >= EXPIRE_INTERVAL_MILLIS) {
+                    lastExpired = now;
+                    for (SegmentLog log : logsByVertexId.values()) {
+                        log.expire(now - retentionMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Could not write to the log store", e);
+            }
+        }
+    }
+
+    private void stop() {
+        writer.interrupt();
+    }
+}
@@ -0,0 +1,157 @@
+package com.mvanniekerk.akka.compute.logstore;
+
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * A file of log lines, mapped into memory. Every line is a record of its length, timestamp, level and UTF-8 message.
+ * The first record with length zero marks the end. Only one thread appends; any thread may scan the records that
+ * were appended before it started.
+ */
+final class Segment {
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Byte.BYTES;
+    private static final CoreLog.Level[] LEVELS = CoreLog.Level.values();
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private volatile int committed = 0;
+    private volatile long firstTimestamp = Long.MAX_VALUE;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+
+    private Segment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    static Segment create(Path path, int size) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Maps an existing segment, and finds the end of its records.
+     */
+    static Segment open(Path path, boolean writable) throws IOException {
+        var options = writable
+                ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ};
+        try (var channel = FileChannel.open(path, options)) {
+            var mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            var segment = new Segment(path, channel.map(mode, 0, channel.size()));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            var length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            var timestamp = buffer.getLong(position + Integer.BYTES);
+            firstTimestamp = Math.min(firstTimestamp, timestamp);
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            position += HEADER_BYTES + length;
+        }
+        committed = position;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    boolean isEmpty() {
+        return committed == 0;
+    }
+
+    /**
+     * Returns false when the record does not fit. A record that fits is visible to scans once this returns.
+     */
+    boolean append(long timestamp, CoreLog.Level level, byte[] message) {
+        var position = committed;
+        if (position + HEADER_BYTES + message.length > buffer.capacity()) {
+            return false;
+        }
+        buffer.putLong(position + Integer.BYTES, timestamp);
+        buffer.put(position + Integer.BYTES + Long.BYTES, (byte) level.ordinal());
+        buffer.put(position + HEADER_BYTES, message);
+        // The length goes last, so that a crash halfway leaves the end marker in place.
+        buffer.putInt(position, message.length);
+        if (firstTimestamp == Long.MAX_VALUE) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        committed = position + HEADER_BYTES + message.length;
+        return true;
+    }
+
+    /**
+     * Adds the matching lines to the result, until it holds the limit. Timestamps and levels are compared in the
+     * mapped file, and the text filter is matched against the raw bytes; only matching lines are copied to the heap.
+     *
+     * @return false when the limit was reached
+     */
+    boolean scan(String vertexId, long from, long to, CoreLog.Level level, byte[] contains,
+                 List<CoreLog.LogMessage> result, int limit) {
+        if (lastTimestamp < from || firstTimestamp > to) {
+            return true;
+        }
+        var end = committed;
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        while (position < end) {
+            var length = view.getInt(position);
+            var timestamp = view.getLong(position + Integer.BYTES);
+            var recordLevel = LEVELS[view.get(position + Integer.BYTES + Long.BYTES)];
+            var start = position + HEADER_BYTES;
+            position = start + length;
+            if (timestamp < from || timestamp > to || recordLevel.compareTo(level) < 0
+                    || (contains != null && indexOf(view, start, length, contains) < 0)) {
+                continue;
+            }
+            if (result.size() == limit) {
+                return false;
+            }
+            var bytes = new byte[length];
+            view.get(start, bytes);
+            result.add(new CoreLog.LogMessage(Instant.ofEpochMilli(timestamp), vertexId, recordLevel,
+                    new String(bytes, StandardCharsets.UTF_8)));
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer view, int start, int length, byte[] needle) {
+        outer:
+        for (int i = start; i <= start + length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (view.get(i + j) != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,96 @@
+package com.mvanniekerk.akka.compute.logstore;
+
+import com.mvanniekerk.akka.compute.vertex.CoreLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * The segments of one vertex, oldest first. The writer thread appends and expires; queries read a snapshot of the
+ * list of segments.
+ */
+final class SegmentLog {
+    private static final String SUFFIX = ".seg";
+
+    private final String vertexId;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private long nextSequence = 0;
+
+    private SegmentLog(String vertexId, Path directory, int segmentSize, int maxSegments) {
+        this.vertexId = vertexId;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Opens the segments that are already on disk. Only the newest one is mapped for writing.
+     */
+    static SegmentLog open(String vertexId, Path directory, int segmentSize, int maxSegments) throws IOException {
+        var log = new SegmentLog(vertexId, directory, segmentSize, maxSegments);
+        if (!Files.isDirectory(directory)) {
+            return log;
+        }
+        List<Path> paths;
+        try (var files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            log.segments.add(Segment.open(paths.get(i), i == paths.size() - 1));
+        }
+        if (!paths.isEmpty()) {
+            var name = paths.get(paths.size() - 1).getFileName().toString();
+            log.nextSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1;
+        }
+        return log;
+    }
+
+    /**
+     * Appends to the newest segment, or to a new one when it is full. The oldest segments are deleted beyond the
+     * maximum number of segments.
+     */
+    void append(long timestamp, CoreLog.Level level, byte[] message) throws IOException {
+        var current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || !current.append(timestamp, level, message)) {
+            Files.createDirectories(directory);
+            current = Segment.create(directory.resolve(String.format("%020d%s", nextSequence++, SUFFIX)), segmentSize);
+            segments.add(current);
+            current.append(timestamp, level, message);
+        }
+        while (segments.size() > maxSegments) {
+            segments.remove(0).delete();
+        }
+    }
+
+    /**
+     * Deletes the segments whose last line is older than the cutoff, except the newest one.
+     */
+    void expire(long cutoff) throws IOException {
+        while (segments.size() > 1 && segments.get(0).lastTimestamp() < cutoff) {
+            segments.remove(0).delete();
+        }
+    }
+
+    /**
+     * @return false when there were more matching lines than the limit
+     */
+    boolean query(long from, long to, CoreLog.Level level, byte[] contains, List<CoreLog.LogMessage> result,
+                  int limit) {
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (!segment.scan(vertexId, from, to, level, contains, result, limit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package com.mvanniekerk.akka.compute.metrics;
+
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the style of HdrHistogram: every power of two is
+ * split into 64 linear buckets, so a recorded value is off by at most 1.6%. Durations above about 18 minutes are
+ * counted as 18 minutes. The counters are allocated on the first recording, so that idle vertices stay small; after
+ * that, recording only increments counters.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+
+    private long[] counts;
+    private long count = 0;
+    private long max = 0;
+
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    public void record(long nanos, int times) {
+        var value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        counts[index(value)] += times;
+        count += times;
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        if (count == 0) {
+            return;
+        }
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    private static int index(long value) {
+        var shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * The highest value that is counted in the bucket.
+     */
+    private static long highestValue(int index) {
+        var shift = index < 2 * HALF_SUB_BUCKETS ? 0 : (index >> (SUB_BUCKET_BITS - 1)) - 1;
+        var subBucket = index - shift * HALF_SUB_BUCKETS;
+        return ((long) (subBucket + 1) << shift) - 1;
+    }
+
+    private long percentile(double percentile) {
+        var rank = (long) Math.ceil(count * percentile / 100);
+        var seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public CoreMetrics.Latency snapshot() {
+        if (count == 0) {
+            return new CoreMetrics.Latency(0, 0, 0, 0, 0);
+        }
+        return new CoreMetrics.Latency(count, micros(percentile(50)), micros(percentile(99)),
+                micros(percentile(99.9)), micros(max));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
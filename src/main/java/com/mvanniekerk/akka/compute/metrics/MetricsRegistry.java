@@ -0,0 +1,96 @@
+package com.mvanniekerk.akka.compute.metrics;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The latest metrics of every vertex instance, published by the instances themselves whenever they change. Readers,
+ * such as the scrape endpoint and the {@link MetricsCollector}, get a consistent view without sending a message to
+ * any actor. Publishing the same vertex again before it is read simply replaces the previous sample.
+ */
+public class MetricsRegistry implements Extension {
+    public static final ExtensionId<MetricsRegistry> ID = new ExtensionId<>() {
+        @Override
+        public MetricsRegistry createExtension(ActorSystem<?> system) {
+            return new MetricsRegistry();
+        }
+    };
+
+    public record Sample(String vertexId, int instance, String name, CoreMetrics.Metrics metrics) {}
+
+    private record Entry(Object publisher, Sample sample) {}
+
+    private final Map<String, Map<Integer, Entry>> entriesByVertexId = new ConcurrentHashMap<>();
+    private final Set<String> changedVertexIds = ConcurrentHashMap.newKeySet();
+
+    public static MetricsRegistry get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    public void publish(Object publisher, Sample sample) {
+        entriesByVertexId.compute(sample.vertexId(), (id, entries) -> {
+            var result = entries == null ? new ConcurrentHashMap<Integer, Entry>() : entries;
+            result.put(sample.instance(), new Entry(publisher, sample));
+            return result;
+        });
+        changedVertexIds.add(sample.vertexId());
+    }
+
+    /**
+     * Removes the sample of the instance, unless it has been replaced by another publisher in the meantime.
+     */
+    public void remove(String vertexId, int instance, Object publisher) {
+        entriesByVertexId.computeIfPresent(vertexId, (id, entries) -> {
+            var remaining = entries.computeIfPresent(instance,
+                    (k, entry) -> entry.publisher() == publisher ? null : entry);
+            if (remaining == null) {
+                changedVertexIds.add(vertexId);
+            }
+            return entries.isEmpty() ? null : entries;
+        });
+    }
+
+    public List<Sample> samples() {
+        var samples = new ArrayList<Sample>();
+        entriesByVertexId.values().forEach(entries -> entries.values().forEach(entry -> samples.add(entry.sample())));
+        return samples;
+    }
+
+    /**
+     * The samples of the instances of a vertex by instance, empty when the vertex is gone.
+     */
+    public Map<Integer, Sample> samples(String vertexId) {
+        var samples = new TreeMap<Integer, Sample>();
+        var entries = entriesByVertexId.get(vertexId);
+        if (entries != null) {
+            entries.forEach((instance, entry) -> samples.put(instance, entry.sample()));
+        }
+        return samples;
+    }
+
+    public Set<String> vertexIds() {
+        return new HashSet<>(entriesByVertexId.keySet());
+    }
+
+    /**
+     * The vertices that were published or removed since the previous call.
+     */
+    public Set<String> drainChanged() {
+        var changed = new HashSet<String>();
+        for (var iterator = changedVertexIds.iterator(); iterator.hasNext(); ) {
+            changed.add(iterator.next());
+            iterator.remove();
+        }
+        return changed;
+    }
+}
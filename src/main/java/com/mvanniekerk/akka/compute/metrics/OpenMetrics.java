@@ -0,0 +1,234 @@
+package com.mvanniekerk.akka.compute.metrics;
+
+import com.mvanniekerk.akka.compute.compute.JavaSourceCompiler;
+import com.mvanniekerk.akka.compute.control.IngressRoutes;
+import com.mvanniekerk.akka.compute.dispatch.InstrumentedExecutor;
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Renders the metrics of the vertices, the dispatchers, the compiler and the JVM in the OpenMetrics text format.
+ */
+public final class OpenMetrics {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final String[] WINDOWS = {"1s", "10s", "60s"};
+    private static final String[] QUANTILES = {"0.5", "0.99", "0.999"};
+
+    private final StringBuilder out = new StringBuilder(8192);
+
+    private OpenMetrics() {
+    }
+
+    public static String render(Collection<MetricsRegistry.Sample> samples,
+                                Map<String, InstrumentedExecutor.Stats> dispatchers,
+                                Collection<IngressRoutes.Ingest> ingest) {
+        var sorted = samples.stream()
+                .sorted(Comparator.comparing(MetricsRegistry.Sample::vertexId)
+                        .thenComparingInt(MetricsRegistry.Sample::instance))
+                .toList();
+        var metrics = new OpenMetrics();
+        metrics.vertices(sorted);
+        metrics.edges(sorted);
+        metrics.dispatchers(dispatchers);
+        metrics.ingest(ingest.stream().sorted(Comparator.comparing(IngressRoutes.Ingest::sessionId)).toList());
+        metrics.compiler(JavaSourceCompiler.shared().stats());
+        metrics.jvm();
+        metrics.out.append("# EOF\n");
+        return metrics.out.toString();
+    }
+
+    private void vertices(List<MetricsRegistry.Sample> samples) {
+        family(samples, "vertex_messages_received", "counter", "Messages received by the vertex.",
+                (sample, labels) -> sample("vertex_messages_received_total", labels,
+                        sample.metrics().messagesReceived()));
+        family(samples, "vertex_messages_sent", "counter", "Messages sent by the vertex.",
+                (sample, labels) -> sample("vertex_messages_sent_total", labels, sample.metrics().messagesSent()));
+        family(samples, "vertex_receive_rate", "gauge", "Messages received per second over a window.",
+                (sample, labels) -> rate("vertex_receive_rate", labels, sample.metrics().received()));
+        family(samples, "vertex_send_rate", "gauge", "Messages sent per second over a window.",
+                (sample, labels) -> rate("vertex_send_rate", labels, sample.metrics().sent()));
+        family(samples, "vertex_mailbox_depth", "gauge", "Messages waiting in the mailbox of the vertex.",
+                (sample, labels) -> sample("vertex_mailbox_depth", labels, sample.metrics().mailboxDepth()));
+        family(samples, "vertex_log_lines_dropped", "counter", "Log lines dropped for going over the rate limit.",
+                (sample, labels) -> sample("vertex_log_lines_dropped_total", labels, sample.metrics().logDropped()));
+        latency(samples, "vertex_queue_wait_seconds", "Time messages spent in the mailbox.",
+                CoreMetrics.Metrics::queueWait);
+        latency(samples, "vertex_processing_seconds", "Time the vertex spent on a message.",
+                CoreMetrics.Metrics::processing);
+    }
+
+    private void latency(List<MetricsRegistry.Sample> samples, String family, String help,
+                         Function<CoreMetrics.Metrics, CoreMetrics.Latency> latency) {
+        family(samples, family, "summary", help + " Quantiles over the last publish interval.", (sample, labels) -> {
+            var value = latency.apply(sample.metrics());
+            var quantiles = new double[]{value.p50(), value.p99(), value.p999()};
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sample(family, labels + ",quantile=\"" + QUANTILES[i] + "\"", quantiles[i] / 1e6);
+            }
+        });
+        family(samples, family + "_max", "gauge", help + " Maximum over the last publish interval.",
+                (sample, labels) -> sample(family + "_max", labels, latency.apply(sample.metrics()).max() / 1e6));
+    }
+
+    private void edges(List<MetricsRegistry.Sample> samples) {
+        edgeFamily(samples, "vertex_edge_credits", "gauge", "Credits the target of the edge has granted.",
+                (edge, labels) -> sample("vertex_edge_credits", labels, edge.credits()));
+        edgeFamily(samples, "vertex_edge_buffered", "gauge", "Messages waiting for credits on the edge.",
+                (edge, labels) -> sample("vertex_edge_buffered", labels, edge.buffered()));
+        edgeFamily(samples, "vertex_edge_blocked_seconds", "counter", "Time the edge was out of credits.",
+                (edge, labels) -> sample("vertex_edge_blocked_seconds_total", labels, edge.blockedMillis() / 1e3));
+        edgeFamily(samples, "vertex_edge_dropped", "counter", "Messages dropped because the edge buffer was full.",
+                (edge, labels) -> sample("vertex_edge_dropped_total", labels, edge.dropped()));
+        edgeFamily(samples, "vertex_edge_send_rate", "gauge", "Messages sent over the edge per second over a window.",
+                (edge, labels) -> rate("vertex_edge_send_rate", labels, edge.sent()));
+    }
+
+    private void dispatchers(Map<String, InstrumentedExecutor.Stats> dispatchers) {
+        header("dispatcher_threads", "gauge", "Threads of the dispatcher.");
+        dispatchers.forEach((id, stats) -> sample("dispatcher_threads", dispatcherLabels(id, stats), stats.threads()));
+        header("dispatcher_queued_tasks", "gauge", "Tasks waiting for a thread of the dispatcher.");
+        dispatchers.forEach((id, stats) ->
+                sample("dispatcher_queued_tasks", dispatcherLabels(id, stats), stats.queued()));
+        header("dispatcher_active_tasks", "gauge", "Tasks running on the dispatcher.");
+        dispatchers.forEach((id, stats) ->
+                sample("dispatcher_active_tasks", dispatcherLabels(id, stats), stats.active()));
+        header("dispatcher_tasks", "counter", "Tasks run by the dispatcher.");
+        dispatchers.forEach((id, stats) ->
+                sample("dispatcher_tasks_total", dispatcherLabels(id, stats), stats.executed()));
+        header("dispatcher_busy_seconds", "counter", "Time the threads of the dispatcher spent running tasks.");
+        dispatchers.forEach((id, stats) ->
+                sample("dispatcher_busy_seconds_total", dispatcherLabels(id, stats), stats.busySeconds()));
+    }
+
+    private void ingest(List<IngressRoutes.Ingest> sessions) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        header("ingest_frames", "counter", "Frames received on a /sendws connection.");
+        sessions.forEach(s -> sample("ingest_frames_total", session(s), s.frames()));
+        header("ingest_messages", "counter", "Messages received on a /sendws connection.");
+        sessions.forEach(s -> sample("ingest_messages_total", session(s), s.messages()));
+        header("ingest_bytes", "counter", "Frame bytes received on a /sendws connection.");
+        sessions.forEach(s -> sample("ingest_bytes_total", session(s), s.bytes()));
+        header("ingest_messages_unrouted", "counter", "Messages for a name without a vertex.");
+        sessions.forEach(s -> sample("ingest_messages_unrouted_total", session(s), s.unrouted()));
+        header("ingest_frames_malformed", "counter", "Frames that could not be decoded.");
+        sessions.forEach(s -> sample("ingest_frames_malformed_total", session(s), s.malformed()));
+        header("ingest_messages_dropped", "counter", "Messages for a vertex that was deleted before they were sent.");
+        sessions.forEach(s -> sample("ingest_messages_dropped_total", session(s), s.dropped()));
+        header("ingest_message_rate", "gauge", "Messages per second received on a /sendws connection.");
+        sessions.forEach(s -> sample("ingest_message_rate", session(s), s.messagesPerSecond()));
+        header("ingest_backpressured_seconds", "counter", "Time the connection was not read, waiting for vertices.");
+        sessions.forEach(s -> sample("ingest_backpressured_seconds_total", session(s),
+                s.backpressuredMillis() / 1000.0));
+    }
+
+    private static String session(IngressRoutes.Ingest ingest) {
+        return label("session", ingest.sessionId());
+    }
+
+    private void compiler(JavaSourceCompiler.Stats stats) {
+        header("compiler_compilations", "counter", "Java sources compiled for vertices.");
+        sample("compiler_compilations_total", "", stats.compilations());
+        header("compiler_failures", "counter", "Java sources that did not compile.");
+        sample("compiler_failures_total", "", stats.failures());
+        header("compiler_cache_hits", "counter", "Java sources served from the class cache.");
+        sample("compiler_cache_hits_total", "", stats.cacheHits());
+        header("compiler_cache_hit_ratio", "gauge", "Fraction of the Java sources served from the class cache.");
+        sample("compiler_cache_hit_ratio", "", stats.hitRate());
+        header("compiler_cached_classes", "gauge", "Compiled sources in the class cache.");
+        sample("compiler_cached_classes", "", stats.cachedClasses());
+        header("compiler_seconds", "counter", "Time spent compiling Java sources.");
+        sample("compiler_seconds_total", "", stats.compileSeconds());
+    }
+
+    private void jvm() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        header("jvm_memory_used_bytes", "gauge", "Memory used by the JVM.");
+        memoryArea("jvm_memory_used_bytes", memory.getHeapMemoryUsage(), memory.getNonHeapMemoryUsage(), false);
+        header("jvm_memory_max_bytes", "gauge", "Memory the JVM may use, or -1 when unlimited.");
+        memoryArea("jvm_memory_max_bytes", memory.getHeapMemoryUsage(), memory.getNonHeapMemoryUsage(), true);
+        header("jvm_threads", "gauge", "Live threads of the JVM.");
+        sample("jvm_threads", "", ManagementFactory.getThreadMXBean().getThreadCount());
+        var collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        header("jvm_gc_collections", "counter", "Garbage collections.");
+        for (GarbageCollectorMXBean gc : collectors) {
+            sample("jvm_gc_collections_total", label("gc", gc.getName()), gc.getCollectionCount());
+        }
+        header("jvm_gc_seconds", "counter", "Time spent in garbage collection.");
+        for (GarbageCollectorMXBean gc : collectors) {
+            sample("jvm_gc_seconds_total", label("gc", gc.getName()), gc.getCollectionTime() / 1e3);
+        }
+    }
+
+    private void memoryArea(String name, MemoryUsage heap, MemoryUsage nonHeap, boolean max) {
+        sample(name, label("area", "heap"), max ? heap.getMax() : heap.getUsed());
+        sample(name, label("area", "nonheap"), max ? nonHeap.getMax() : nonHeap.getUsed());
+    }
+
+    private void family(List<MetricsRegistry.Sample> samples, String family, String type, String help,
+                        BiConsumer<MetricsRegistry.Sample, String> writer) {
+        header(family, type, help);
+        samples.forEach(sample -> writer.accept(sample, vertexLabels(sample)));
+    }
+
+    private void edgeFamily(List<MetricsRegistry.Sample> samples, String family, String type, String help,
+                            BiConsumer<CoreMetrics.EdgeMetrics, String> writer) {
+        header(family, type, help);
+        for (MetricsRegistry.Sample sample : samples) {
+            var labels = vertexLabels(sample);
+            sample.metrics().edges().forEach((target, edge) ->
+                    writer.accept(edge, labels + "," + label("target", target)));
+        }
+    }
+
+    private void rate(String family, String labels, CoreMetrics.Rate rate) {
+        var values = new double[]{rate.oneSecond(), rate.tenSeconds(), rate.oneMinute()};
+        for (int i = 0; i < WINDOWS.length; i++) {
+            sample(family, labels + ",window=\"" + WINDOWS[i] + "\"", values[i]);
+        }
+    }
+
+    private void header(String family, String type, String help) {
+        out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+        out.append("# HELP ").append(family).append(' ').append(help).append('\n');
+    }
+
+    private void sample(String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String vertexLabels(MetricsRegistry.Sample sample) {
+        return label("vertex", sample.vertexId()) + "," + label("name", sample.name()) + ","
+                + label("instance", Integer.toString(sample.instance()));
+    }
+
+    private static String dispatcherLabels(String id, InstrumentedExecutor.Stats stats) {
+        return label("dispatcher", id) + "," + label("kind", stats.kind());
+    }
+
+    private static String label(String name, String value) {
+        var escaped = value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+}
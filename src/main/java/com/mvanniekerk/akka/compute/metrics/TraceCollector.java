@@ -0,0 +1,79 @@
+package com.mvanniekerk.akka.compute.metrics;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import com.mvanniekerk.akka.compute.vertex.CoreMetrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency statistics of sampled messages per path through the graph. Every vertex a traced message arrives at records
+ * the time since the message entered the graph, under the path the message took to get there.
+ */
+public class TraceCollector implements Extension {
+    public static final ExtensionId<TraceCollector> ID = new ExtensionId<>() {
+        @Override
+        public TraceCollector createExtension(ActorSystem<?> system) {
+            return new TraceCollector(system.settings().config().getInt("vertex.tracing.max-paths"));
+        }
+    };
+
+    /**
+     * @param path    the origin of the messages, followed by the vertices they passed through
+     * @param latency the time from entering the graph until arriving at the last vertex of the path
+     */
+    public record PathLatency(List<String> path, CoreMetrics.Latency latency) {}
+
+    private record PathStats(List<String> path, LatencyHistogram histogram) {}
+
+    private final int maxPaths;
+    private final Map<List<String>, PathStats> statsByPath = new ConcurrentHashMap<>();
+
+    private TraceCollector(int maxPaths) {
+        this.maxPaths = maxPaths;
+    }
+
+    public static TraceCollector get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    /**
+     * Records a message that passed through the hops and arrived at the vertex. Paths beyond the maximum number of
+     * paths are not recorded.
+     */
+    public void record(List<String> hops, String vertexId, long nanos) {
+        var path = new ArrayList<String>(hops.size() + 1);
+        path.addAll(hops);
+        path.add(vertexId);
+        var stats = statsByPath.get(path);
+        if (stats == null) {
+            if (statsByPath.size() >= maxPaths) {
+                return;
+            }
+            stats = statsByPath.computeIfAbsent(List.copyOf(path), key -> new PathStats(key, new LatencyHistogram()));
+        }
+        synchronized (stats) {
+            stats.histogram().record(nanos);
+        }
+    }
+
+    public List<PathLatency> paths() {
+        var paths = new ArrayList<PathLatency>();
+        for (PathStats stats : statsByPath.values()) {
+            synchronized (stats) {
+                paths.add(new PathLatency(stats.path(), stats.histogram().snapshot()));
+            }
+        }
+        paths.sort(Comparator.comparing(pathLatency -> String.join("/", pathLatency.path())));
+        return paths;
+    }
+
+    public void reset() {
+        statsByPath.clear();
+    }
+}
@@ -0,0 +1,98 @@
+package com.mvanniekerk.akka.compute.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+
+/**
+ * Compares the shared {@link Codecs} with the mapper that every vertex used to build for itself. It measures what
+ * creating the codecs of a vertex costs, and what converting a message from a JSON tree to a record and back costs,
+ * with a mapper of its own and with the cached readers and writers of the registry.
+ * <p>
+ * Arguments: the vertices to create (10000), the messages to convert (1000000) and the number of rounds (5), of which
+ * the first warms up.
+ */
+public final class CodecBenchmark {
+    public record NumberMessage(long number, ZonedDateTime sentTime) {}
+
+    /**
+     * Where the results go, so that the JIT cannot skip the work.
+     */
+    private static volatile long sink;
+
+    private CodecBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        var vertices = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        var messages = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        var rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        double ownCreation = 0, sharedCreation = 0, ownConversion = 0, sharedConversion = 0;
+        for (int round = 0; round < rounds; round++) {
+            // The first round warms up the codecs and the JIT.
+            var weight = round == 0 ? 0 : 1.0 / (rounds - 1);
+            ownCreation += weight * create(vertices, true);
+            sharedCreation += weight * create(vertices, false);
+            ownConversion += weight * convert(ownMapper(), messages);
+            sharedConversion += weight * convert(null, messages);
+        }
+        System.out.printf("%-25s %15s %15s%n", "", "own mapper", "shared codecs");
+        System.out.printf("%-25s %15.0f %15.0f%n", "creating a vertex (ns)", ownCreation, sharedCreation);
+        System.out.printf("%-25s %15.0f %15.0f%n", "converting a message (ns)", ownConversion, sharedConversion);
+        System.out.printf("%-25s %15.0f %15.0f%n", "creating 10k vertices (ms)", ownCreation * 10_000 / 1e6,
+                sharedCreation * 10_000 / 1e6);
+    }
+
+    /**
+     * The mapper that the constructor of every vertex built before the registry.
+     */
+    private static ObjectMapper ownMapper() {
+        var mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        return mapper;
+    }
+
+    /**
+     * The nanoseconds to create the codecs of one vertex and convert its first message, which is when a mapper of its
+     * own looks up its serializers.
+     */
+    private static double create(int vertices, boolean own) throws IOException {
+        var message = new NumberMessage(1, ZonedDateTime.now());
+        var checksum = 0L;
+        var start = System.nanoTime();
+        for (int i = 0; i < vertices; i++) {
+            var mapper = own ? ownMapper() : Codecs.mapper();
+            checksum += own ? roundTrip(mapper, message) : roundTrip(null, message);
+        }
+        var nanos = System.nanoTime() - start;
+        sink = checksum;
+        return (double) nanos / vertices;
+    }
+
+    /**
+     * The nanoseconds per message, with the given mapper or with the registry when it is null.
+     */
+    private static double convert(ObjectMapper mapper, int messages) throws IOException {
+        var sentTime = ZonedDateTime.now();
+        var checksum = 0L;
+        var start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            checksum += roundTrip(mapper, new NumberMessage(i, sentTime));
+        }
+        var nanos = System.nanoTime() - start;
+        sink = checksum;
+        return (double) nanos / messages;
+    }
+
+    private static long roundTrip(ObjectMapper mapper, NumberMessage message) throws IOException {
+        if (mapper == null) {
+            JsonNode tree = Codecs.valueToTree(message);
+            return Codecs.treeToValue(tree, NumberMessage.class).number();
+        }
+        JsonNode tree = mapper.valueToTree(message);
+        return mapper.treeToValue(tree, NumberMessage.class).number();
+    }
+}
@@ -0,0 +1,154 @@
+package com.mvanniekerk.akka.compute.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileConstants;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Process-wide JSON codecs. The mapper is built once, and readers and writers are cached per type so that repeated
+ * conversions skip the serializer lookups. Blackbird generated accessors are enabled unless the
+ * {@code vertex.codecs.blackbird} system property is set to false. Binary input is read as Smile or CBOR,
+ * and binary output is written as CBOR.
+ */
+public final class Codecs {
+    private static final ObjectMapper OBJECT_MAPPER = configure(new ObjectMapper());
+    private static final ObjectMapper CBOR_MAPPER = configure(new CBORMapper());
+    private static final ObjectMapper SMILE_MAPPER = configure(new SmileMapper());
+    /**
+     * The readers and writers are kept with their class, so that the classes of the code of a vertex can still be
+     * unloaded along with their class loader.
+     */
+    private static final ClassValue<ObjectReader> READERS = new ClassValue<>() {
+        @Override
+        protected ObjectReader computeValue(Class<?> type) {
+            return OBJECT_MAPPER.readerFor(type);
+        }
+    };
+    private static final ClassValue<ObjectWriter> WRITERS = new ClassValue<>() {
+        @Override
+        protected ObjectWriter computeValue(Class<?> type) {
+            return OBJECT_MAPPER.writerFor(type);
+        }
+    };
+
+    private Codecs() {
+    }
+
+    private static ObjectMapper configure(ObjectMapper objectMapper) {
+        objectMapper.registerModule(new JavaTimeModule());
+        if (!"false".equals(System.getProperty("vertex.codecs.blackbird"))) {
+            objectMapper.registerModule(new BlackbirdModule(Codecs::lookup));
+        }
+        return objectMapper;
+    }
+
+    /**
+     * Blackbird can only generate accessors for the classes of this module. The classes of the code of a vertex are
+     * loaded by a class loader of their own, and are read with reflection instead.
+     */
+    private static MethodHandles.Lookup lookup(Class<?> type) {
+        if (type.getModule() != Codecs.class.getModule()) {
+            return null;
+        }
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public static ObjectMapper mapper() {
+        return OBJECT_MAPPER;
+    }
+
+    public static ObjectReader reader(Class<?> type) {
+        return READERS.get(type);
+    }
+
+    public static ObjectWriter writer(Class<?> type) {
+        return WRITERS.get(type);
+    }
+
+    public static <T> T treeToValue(JsonNode node, Class<T> type) {
+        try {
+            return reader(type).readValue(node);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static <T> T readValue(byte[] bytes, Class<T> type) {
+        try {
+            return reader(type).readValue(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static JsonNode valueToTree(Object value) {
+        return OBJECT_MAPPER.valueToTree(value);
+    }
+
+    public static JsonNode readTree(byte[] bytes) {
+        try {
+            return OBJECT_MAPPER.readTree(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static JsonNode readTree(String json) {
+        try {
+            return OBJECT_MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Reads Smile when the bytes start with the Smile header, and CBOR otherwise.
+     */
+    public static JsonNode readBinaryTree(byte[] bytes) {
+        var smile = bytes.length >= 3 && bytes[0] == SmileConstants.HEADER_BYTE_1
+                && bytes[1] == SmileConstants.HEADER_BYTE_2 && bytes[2] == SmileConstants.HEADER_BYTE_3;
+        try {
+            return (smile ? SMILE_MAPPER : CBOR_MAPPER).readTree(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static byte[] writeValueAsBytes(Object value) {
+        try {
+            return writer(value.getClass()).writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static byte[] writeValueAsCbor(Object value) {
+        try {
+            return CBOR_MAPPER.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static String writeValueAsString(Object value) {
+        try {
+            return writer(value.getClass()).writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+/**
+ * Outgoing messages on an edge are collected into batches of at most {@code maxSize} messages, and a batch is sent
+ * at the latest {@code lingerMillis} after its first message.
+ */
+public record Batching(int maxSize, long lingerMillis) {
+    public static final Batching NONE = new Batching(1, 0);
+
+    public Batching {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("A batch holds at least one message, not " + maxSize);
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("A batch cannot linger for a negative time: " + lingerMillis + " ms");
+        }
+    }
+}
@@ -2,70 +2,389 @@ package com.mvanniekerk.akka.compute.vertex;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.*;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.mvanniekerk.akka.compute.compute.Compiler;
 import com.mvanniekerk.akka.compute.compute.ComputeCore;
-import com.mvanniekerk.akka.compute.compute.StaticClassNameCompiler;
+import com.mvanniekerk.akka.compute.compute.JavaSourceCompiler;
+import com.mvanniekerk.akka.compute.compute.NoopCompute;
+import com.mvanniekerk.akka.compute.dispatch.CountingMailbox;
+import com.mvanniekerk.akka.compute.logstore.LogStore;
+import com.mvanniekerk.akka.compute.metrics.LatencyHistogram;
+import com.mvanniekerk.akka.compute.metrics.MetricsRegistry;
+import com.mvanniekerk.akka.compute.metrics.TraceCollector;
+import com.mvanniekerk.akka.compute.util.Codecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
-import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class Core extends AbstractBehavior<VertexMessage> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Core.class);
     private static final int MAX_LOG_MESSAGES = 100;
-    private static final int ROLLING_AVERAGE_DURATION_SECONDS = 10;
+    private static final String EXTERNAL_ORIGIN = "/send";
 
-    public static Behavior<VertexMessage> create(String id, String name, String code) {
+    private record TimerKey(String vertexId, String key) {}
+    private record PublishTimerKey(String vertexId) {}
+    private record LogFlushTimerKey(String vertexId) {}
+    private record DrainTimerKey(String vertexId) {}
+    private record DrainTimedOut() implements VertexMessage {}
+    private record CodeCompiled(ActorRef<VertexDescription> replyTo, int version, String code,
+                                Function<Core, ComputeCore> compiled, Throwable failure, long nanos)
+            implements VertexMessage {}
+    /**
+     * A message handed over by the previous stage of a fused chain, while this stage was starting.
+     */
+    private record Delivered(Payload message) implements VertexMessage {}
+
+    /**
+     * @param props the props of the instances, when the vertex runs as a pool
+     */
+    public static Behavior<VertexMessage> create(String id, String name, String code, Deployment deployment,
+                                                 Props props) {
+        return create(id, name, code, deployment, props, List.of(), null, Map.of());
+    }
+
+    /**
+     * @param connects the edges to connect before the code runs, so that it never sends without them
+     * @param state    the state of the code of a vertex that moved from another node, or null. A vertex with several
+     *                 instances does not move, so it never has any.
+     * @param held     the messages that the edges of a vertex that moved still held, by target. They go out before
+     *                 anything the code sends, once the edge to the target is connected.
+     */
+    public static Behavior<VertexMessage> create(String id, String name, String code, Deployment deployment,
+                                                 Props props, List<CoreControl.Connect> connects, JsonNode state,
+                                                 Map<String, List<JsonNode>> held) {
+        if (deployment == null || deployment.instances() == 1) {
+            return create(id, name, code, deployment, 0, connects, state, held);
+        }
+        return CorePool.create(deployment, props,
+                instance -> create(id, name, code, deployment, instance, connects, null, Map.of()));
+    }
+
+    private static Behavior<VertexMessage> create(String id, String name, String code, Deployment deployment,
+                                                  int instance, List<CoreControl.Connect> connects, JsonNode state,
+                                                  Map<String, List<JsonNode>> held) {
         return Behaviors.setup(context ->
-                Behaviors.withTimers(scheduler -> new Core(context, scheduler, id, name, code)));
+                Behaviors.withTimers(scheduler -> {
+                    var core = new Core(context, scheduler, id, name, code, deployment, instance, false, state);
+                    held.forEach((targetId, messages) -> core.targetsById.put(targetId, OutgoingEdge.held(
+                            messages.stream().map(Payload::of).collect(Collectors.toList()), core.maxBuffered)));
+                    connects.forEach(core::connect);
+                    return core;
+                }));
     }
 
-    private final Compiler compiler = new StaticClassNameCompiler();
+    private final Compiler compiler = JavaSourceCompiler.shared();
     private final TimerScheduler<VertexMessage> scheduler;
     private final String id;
+    private final int instance;
+    private final String flowId;
+    private final Deployment deployment;
+    private final int credits;
+    private final int maxBuffered;
+    private final boolean hosted;
+    private final MetricsRegistry metricsRegistry;
+    private final TraceCollector traceCollector;
+    private final double traceSampleRate;
 
-    private final Map<String, ActorRef<? super CoreConsumer>> targetsById = new HashMap<>();
+    private final Map<String, OutgoingEdge> targetsById = new HashMap<>();
+    private final Map<String, IncomingEdge> sourcesById = new HashMap<>();
     private final Map<String, Runnable> periodicRunnableByKey = new HashMap<>();
-    private final Queue<CoreLog.LogMessage> log = new ArrayDeque<>();
-    private final Queue<Long> messageReceiveTimestamps = new ArrayDeque<>();
+    private final Set<String> deferredTicks = new LinkedHashSet<>();
+    private final CoreLog.Level logLevel;
+    private final VertexLog log;
+    private final Duration logFlushInterval;
+    private final LogStore logStore;
+    private final RateMeter receivedRate = new RateMeter();
+    private final RateMeter sentRate = new RateMeter();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram processing = new LatencyHistogram();
+    private CoreMetrics.Latency lastQueueWait;
+    private CoreMetrics.Latency lastProcessing;
+    private MetricsRegistry.Sample publishedSample;
 
     private String name;
     private String code;
     private ComputeCore process;
-    private ActorRef<CoreLog.LogMessage> logSubscriber;
+    /**
+     * Creates the running code again, when new code fails to start.
+     */
+    private Function<Core, ComputeCore> factory;
+    private final Set<ActorRef<CoreLog.LogMessages>> logSubscribers = new LinkedHashSet<>();
+    private Batching outputBatching;
     private long messagesSent = 0;
     private long messagesReceived = 0;
+    private Core fusedNext;
+    private long fusedNanos = 0;
+    private boolean receiving = false;
+    private Trace receivedTrace;
+    private Receive<VertexMessage> stageReceive;
+    private int codeVersion = 0;
+    private boolean starting = false;
+    private boolean awaitingState = false;
+    private boolean codePending = false;
+    private final Deque<VertexMessage> stash = new ArrayDeque<>();
+    private final List<ActorRef<CoreControl.CodeReady>> codeWaiters = new ArrayList<>();
+    private final Duration drainTimeout;
+    private JsonNode initialState;
+    private ActorRef<CoreControl.Migrated> migrateReplyTo;
 
-    private Core(ActorContext<VertexMessage> context, TimerScheduler<VertexMessage> scheduler, String id, String name, String code) {
+    /**
+     * A hosted core is a stage of a fused chain: it runs inside the actor of the head of the chain, and receives its
+     * messages from the previous stage synchronously.
+     */
+    private Core(ActorContext<VertexMessage> context, TimerScheduler<VertexMessage> scheduler, String id, String name,
+                 String code, Deployment deployment, int instance, boolean hosted, JsonNode state) {
         super(context);
+        this.hosted = hosted;
         this.scheduler = scheduler;
         this.id = id;
+        this.instance = instance;
+        this.flowId = deployment == null || deployment.instances() == 1 ? id : id + "/" + instance;
+        this.deployment = deployment;
         this.name = name;
         this.code = code;
-        process = compiler.compile(code).apply(this);
+        var settings = VertexSettings.get(context.getSystem());
+        this.credits = settings.credits;
+        this.maxBuffered = settings.maxBuffered;
+        this.metricsRegistry = MetricsRegistry.get(context.getSystem());
+        this.traceCollector = TraceCollector.get(context.getSystem());
+        this.traceSampleRate = settings.traceSampleRate;
+        this.logLevel = settings.logLevel;
+        this.log = new VertexLog(MAX_LOG_MESSAGES, logLevel, settings.maxLogLinesPerSecond);
+        this.logFlushInterval = settings.logFlushInterval;
+        this.logStore = LogStore.get(context.getSystem());
+        this.drainTimeout = settings.drainTimeout;
+        lastQueueWait = queueWait.snapshot();
+        lastProcessing = processing.snapshot();
+        var publish = new CoreMetrics.PublishMetrics();
+        scheduler.startTimerAtFixedRate(new PublishTimerKey(id), address(publish), settings.publishInterval);
+        var compiling = compiler.compileAsync(code, compileExecutor()).toCompletableFuture();
+        if (compiling.isDone() && !compiling.isCompletedExceptionally()) {
+            factory = compiling.join();
+            process = factory.apply(this);
+            restoreState(state);
+        } else {
+            // Messages wait for the code, rather than reaching a vertex without it.
+            factory = NoopCompute::new;
+            process = factory.apply(this);
+            initialState = state;
+            starting = true;
+            pipeCompiled(compiling, code, null);
+        }
     }
 
-    public void send(JsonNode message) {
-        var now = System.currentTimeMillis();
-        removeOldMessageReceiveTimestamps(now);
-        messageReceiveTimestamps.add(now);
+    private Executor compileExecutor() {
+        return getContext().getSystem().dispatchers().lookup(DispatcherSelector.blocking());
+    }
+
+    private void pipeCompiled(CompletionStage<Function<Core, ComputeCore>> compiling, String code,
+                              ActorRef<VertexDescription> replyTo) {
+        var version = ++codeVersion;
+        codePending = true;
+        var start = System.nanoTime();
+        getContext().pipeToSelf(compiling, (compiled, failure) -> address(new CodeCompiled(replyTo, version, code,
+                compiled, failure, System.nanoTime() - start)));
+    }
+
+    /**
+     * Sends the message to all targets. A message sent while handling a traced message carries that trace on; a
+     * message sent at any other time, for example from a timer, starts a new trace when it is sampled.
+     */
+    public void send(Payload message) {
+        sentRate.mark(System.currentTimeMillis(), 1);
         messagesSent++;
+        Trace trace;
+        if (receiving) {
+            trace = receivedTrace == null ? null : receivedTrace.through(id);
+        } else {
+            trace = sample() ? Trace.start(id, System.nanoTime()) : null;
+        }
+        message = message.withTrace(trace);
+
+        if (fusedNext != null) {
+            var start = System.nanoTime();
+            fusedNext.deliver(message);
+            fusedNanos += System.nanoTime() - start;
+        }
+        var sent = message;
+        targetsById.forEach((targetId, edge) -> {
+            var batching = edge.batching(outputBatching);
+            if (edge.offer(flowId, sent, batching)) {
+                var flush = new CoreConsumer.FlushBatch(targetId);
+                scheduler.startSingleTimer(flush, address(flush), Duration.ofMillis(batching.lingerMillis()));
+            }
+        });
+    }
+
+    private void deliver(Payload message) {
+        if (starting) {
+            stash.add(new Delivered(message));
+            return;
+        }
+        messagesReceived++;
+        receivedRate.mark(System.currentTimeMillis(), 1);
+        if (process != null) {
+            var start = System.nanoTime();
+            var fusedBefore = fusedNanos;
+            startReceiving(arrive(message, false, start));
+            process.receive(message);
+            stopReceiving();
+            recordProcessing(start, fusedBefore, 1);
+        }
+    }
+
+    private boolean sample() {
+        return traceSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < traceSampleRate;
+    }
+
+    /**
+     * Records the arrival of a traced message, and returns its trace. A message from outside the graph may be
+     * sampled on arrival.
+     */
+    private Trace arrive(Payload message, boolean external, long sentNanos) {
+        var trace = message.trace();
+        if (trace == null) {
+            if (!external || !sample()) {
+                return null;
+            }
+            trace = Trace.start(EXTERNAL_ORIGIN, sentNanos);
+        }
+        traceCollector.record(trace.hops(), id, System.nanoTime() - trace.originNanos());
+        return trace;
+    }
+
+    private void startReceiving(Trace trace) {
+        receiving = true;
+        receivedTrace = trace;
+    }
+
+    private void stopReceiving() {
+        receiving = false;
+        receivedTrace = null;
+    }
+
+    /**
+     * Records the time spent since start, minus the time spent in the fused stages that the messages were passed on
+     * to.
+     */
+    private void recordProcessing(long start, long fusedBefore, int messages) {
+        var nanos = System.nanoTime() - start - (fusedNanos - fusedBefore);
+        processing.record(nanos / messages, messages);
+    }
+
+    /**
+     * Messages that a hosted stage sends to itself are addressed to it, because they arrive at the actor of the head.
+     */
+    private VertexMessage address(VertexMessage message) {
+        return hosted ? new CoreControl.Staged(id, message) : message;
+    }
+
+    private Core stage(String vertexId) {
+        var stage = fusedNext;
+        while (stage != null && !stage.id.equals(vertexId)) {
+            stage = stage.fusedNext;
+        }
+        return stage;
+    }
+
+    /**
+     * A vertex is backpressured when one of its edges has run out of credits. It then holds back its timers and stops
+     * granting credits to its own sources until the edge has caught up.
+     */
+    private boolean isBackpressured() {
+        for (OutgoingEdge edge : targetsById.values()) {
+            if (edge.isBlocked()) {
+                return true;
+            }
+        }
+        return fusedNext != null && fusedNext.isBackpressured();
+    }
+
+    /**
+     * Runs the timers that fired while the vertex was backpressured, once each, so that a timer that fires once is
+     * delayed rather than lost.
+     */
+    private void runDeferredTicks() {
+        var keys = deferredTicks.iterator();
+        while (keys.hasNext() && !isBackpressured()) {
+            var runnable = periodicRunnableByKey.get(keys.next());
+            keys.remove();
+            if (runnable != null) {
+                runnable.run();
+            }
+        }
+        if (fusedNext != null) {
+            fusedNext.runDeferredTicks();
+        }
+    }
 
-        targetsById.forEach((id, target) -> target.tell(new CoreConsumer.Message(message)));
+    private void grantCredits() {
+        // A vertex that moves to another node takes nothing new.
+        if (isBackpressured() || migrateReplyTo != null) {
+            return;
+        }
+        int threshold = Math.max(1, credits / 2);
+        sourcesById.values().forEach(source -> source.grant(id, instance, threshold));
     }
 
-    public void log(String message) {
-        CoreLog.LogMessage logMessage = new CoreLog.LogMessage(ZonedDateTime.now(), id, message);
-        if (log.size() == MAX_LOG_MESSAGES) {
-            log.poll();
+    private void consume(String sourceId, int count) {
+        if (sourceId == null) {
+            return;
         }
-        log.add(logMessage);
-        if (logSubscriber != null) {
-            logSubscriber.tell(logMessage);
+        var source = sourcesById.get(sourceId);
+        if (source != null) {
+            source.consume(count);
+        }
+    }
+
+    public void setOutputBatching(Batching batching) {
+        this.outputBatching = batching;
+    }
+
+    public boolean isLogEnabled(CoreLog.Level level) {
+        return log.isEnabled(level);
+    }
+
+    public void setLogLevel(CoreLog.Level level) {
+        log.setLevel(level);
+    }
+
+    /**
+     * Keeps the line. The subscribers get the new lines every flush interval, and the line is written to the log store
+     * in the background. Without a log store, the line is only formatted when it is flushed. A line below the level,
+     * or over the limit of lines per second, is never formatted.
+     */
+    public void log(CoreLog.Level level, String format, Object[] arguments) {
+        var now = System.currentTimeMillis();
+        if (!log.admit(now, level)) {
+            return;
+        }
+        if (logStore.isEnabled()) {
+            // The store writes on its own thread, so the line is formatted here, before the arguments can change.
+            format = CoreLog.format(format, arguments);
+            arguments = null;
+            logStore.append(id, now, level, format);
+        }
+        log.store(now, level, format, arguments);
+    }
+
+    private void flushLog() {
+        var lines = log.drain(id);
+        if (!lines.isEmpty()) {
+            var messages = new CoreLog.LogMessages(lines);
+            logSubscribers.forEach(subscriber -> subscriber.tell(messages));
         }
     }
 
@@ -74,7 +393,8 @@ public class Core extends AbstractBehavior<VertexMessage> {
             stopPeriodic(key);
         }
         periodicRunnableByKey.put(key, runnable);
-        scheduler.startTimerAtFixedRate(key, new CoreConsumer.Tick(key), Duration.ofMillis(0), interval);
+        scheduler.startTimerAtFixedRate(new TimerKey(id, key), address(new CoreConsumer.Tick(key)),
+                Duration.ofMillis(0), interval);
     }
 
     public void scheduleOnce(String key, Duration delay, Runnable runnable) {
@@ -82,55 +402,381 @@ public class Core extends AbstractBehavior<VertexMessage> {
             stopPeriodic(key);
         }
         periodicRunnableByKey.put(key, runnable);
-        scheduler.startSingleTimer(key, new CoreConsumer.Tick(key), delay);
+        scheduler.startSingleTimer(new TimerKey(id, key), address(new CoreConsumer.Tick(key)), delay);
     }
 
     public void stopPeriodic(String key) {
-        scheduler.cancel(key);
+        scheduler.cancel(new TimerKey(id, key));
         periodicRunnableByKey.remove(key);
+        deferredTicks.remove(key);
+    }
+
+    /**
+     * Replaces the running code within a single message, so that no message reaches either instance halfway. The
+     * state of the old instance is handed to the new one as JSON, so that it survives a change of class. The counters,
+     * metrics and log of the vertex are kept. When the new code throws while starting, the previous code is started
+     * again with the same state, as if the new code had not compiled.
+     */
+    private void swap(String code, Function<Core, ComputeCore> compiled) {
+        // The first code of a vertex that moved here takes over the state it had on the other node.
+        var state = initialState != null ? initialState : snapshotState();
+        resetCodeSettings();
+        process.onStop();
+        try {
+            process = compiled.apply(this);
+        } catch (RuntimeException | LinkageError e) {
+            log(CoreLog.Level.ERROR, "Could not start the code, so the previous code runs again: {}",
+                    new Object[]{e.toString()});
+            // The failed constructor may have scheduled timers or changed the batching before it threw.
+            resetCodeSettings();
+            process = factory.apply(this);
+            restoreState(state);
+            return;
+        }
+        initialState = null;
+        this.code = code;
+        factory = compiled;
+        restoreState(state);
+    }
+
+    /**
+     * Undoes what the running code set up for itself.
+     */
+    private void resetCodeSettings() {
+        cancelTimers();
+        outputBatching = null;
+        log.setLevel(logLevel);
+    }
+
+    private JsonNode snapshotState() {
+        try {
+            var snapshot = process.snapshotState();
+            return snapshot == null ? null : Codecs.valueToTree(snapshot);
+        } catch (RuntimeException e) {
+            log(CoreLog.Level.WARN, "Could not take the state of the previous code: {}",
+                    new Object[]{e.toString()});
+            return null;
+        }
+    }
+
+    private void restoreState(JsonNode state) {
+        if (state == null) {
+            return;
+        }
+        try {
+            process.restoreState(state);
+        } catch (RuntimeException e) {
+            log(CoreLog.Level.WARN, "Could not restore the state of the previous code: {}",
+                    new Object[]{e.toString()});
+        }
+    }
+
+    /**
+     * Stops the vertex that moves to another node, once the sources have detached and every message they sent before
+     * has been handled, or once the drain timeout has passed. The edges are flushed before the state is taken, so the
+     * new instance starts where this one ends. A paused edge cannot be flushed, since its target moves as well, so
+     * what it holds moves along.
+     */
+    private Behavior<VertexMessage> migrateWhenDrained(boolean timedOut) {
+        if (migrateReplyTo == null || (!timedOut && (starting || !sourcesById.isEmpty()))) {
+            return this;
+        }
+        if (timedOut) {
+            LOGGER.warn("Vertex {} moves with {} sources still attached", id, sourcesById.size());
+        }
+        var state = snapshotState();
+        cancelTimers();
+        var held = new HashMap<String, List<JsonNode>>();
+        targetsById.forEach((targetId, edge) -> {
+            if (edge.isPaused()) {
+                held.put(targetId, edge.takePending().stream().map(Payload::json).collect(Collectors.toList()));
+            } else {
+                edge.close(flowId);
+            }
+        });
+        process.onStop();
+        migrateReplyTo.tell(new CoreControl.Migrated(id, getContext().getSelf(), state, held));
+        return Behaviors.stopped();
+    }
+
+    private void unstash() throws Exception {
+        while (!stash.isEmpty()) {
+            var message = stash.poll();
+            if (message instanceof Delivered delivered) {
+                deliver(delivered.message());
+            } else {
+                receiveStaged(message);
+            }
+        }
+    }
+
+    private void cancelTimers() {
+        periodicRunnableByKey.keySet().forEach(key -> scheduler.cancel(new TimerKey(id, key)));
+        periodicRunnableByKey.clear();
+        deferredTicks.clear();
+    }
+
+    /**
+     * Connecting again to the actor the edge already goes to changes nothing, so that Control may send it more than
+     * once while a vertex starts.
+     */
+    private void connect(CoreControl.Connect connect) {
+        var existing = targetsById.get(connect.id());
+        if (existing != null && !existing.isPaused() && existing.target().equals(connect.target())
+                && Objects.equals(existing.batching(null), connect.batching())) {
+            return;
+        }
+        var edge = new OutgoingEdge(connect.target(), connect.batching(), maxBuffered);
+        var previous = targetsById.put(connect.id(), edge);
+        if (previous != null && previous.isPaused()) {
+            edge.takeOver(previous);
+        } else if (previous != null) {
+            previous.close(flowId);
+        }
+        connect.target().tell(new CoreFlow.Attach(flowId, getContext().getSelf()));
+    }
+
+    private void disconnect(OutgoingEdge edge) {
+        edge.close(flowId);
+        // A held edge was never connected.
+        if (edge.target() != null) {
+            edge.target().tell(new CoreFlow.Detach(flowId, getContext().getSelf()));
+        }
+    }
+
+    private void onAttached(CoreFlow.Attached attached) {
+        var edge = targetsById.get(attached.targetId());
+        if (edge != null) {
+            edge.attached(flowId, attached, edge.batching(outputBatching));
+        } else if (fusedNext != null) {
+            fusedNext.onAttached(attached);
+        }
+    }
+
+    private void onCredit(CoreFlow.Credit credit) {
+        var edge = targetsById.get(credit.targetId());
+        if (edge != null) {
+            edge.grant(flowId, credit.instance(), credit.amount(), edge.batching(outputBatching));
+        } else if (fusedNext != null) {
+            fusedNext.onCredit(credit);
+        }
+    }
+
+    private void fuse(CoreControl.Fuse fuse) {
+        var replaced = targetsById.remove(fuse.stages().get(0).id());
+        if (replaced != null) {
+            replaced.close(flowId);
+            replaced.target().tell(new CoreControl.StopChain(fuse.stages().size(), getContext().getSelf()));
+        }
+        var previous = this;
+        for (VertexDescription stage : fuse.stages()) {
+            previous.fusedNext = new Core(getContext(), scheduler, stage.id(), stage.name(), stage.code(),
+                    stage.deployment(), 0, true, null);
+            previous = previous.fusedNext;
+            if (replaced != null) {
+                // The stage waits for the state of its own actor, which has handled every message sent to it before.
+                previous.starting = true;
+                previous.awaitingState = true;
+            }
+        }
+        fuse.tailEdges().forEach(previous::connect);
+    }
+
+    /**
+     * Hands the state of every stage to the actor it runs in from now on, before the head sends that actor anything.
+     */
+    private void handOverStages(Map<String, ActorRef<VertexMessage>> stageActors) {
+        for (var stage = fusedNext; stage != null; stage = stage.fusedNext) {
+            var actor = stageActors.get(stage.id);
+            if (actor != null) {
+                actor.tell(new CoreControl.StageState(stage.id, stage.snapshotState()));
+            }
+        }
+    }
+
+    /**
+     * Takes over the state of the code of this vertex from the actor it ran in before. A stage that waited for it
+     * starts handling messages; a vertex whose code still compiles hands it to the code once it is ready.
+     */
+    private void takeState(JsonNode state) throws Exception {
+        if (starting && codePending) {
+            initialState = state;
+        } else {
+            restoreState(state);
+        }
+        if (awaitingState) {
+            awaitingState = false;
+            if (!codePending) {
+                starting = false;
+                unstash();
+            }
+        }
+    }
+
+    private void stopStages() {
+        if (fusedNext == null) {
+            return;
+        }
+        fusedNext.stopStages();
+        fusedNext.cancelTimers();
+        scheduler.cancel(new PublishTimerKey(fusedNext.id));
+        scheduler.cancel(new LogFlushTimerKey(fusedNext.id));
+        metricsRegistry.remove(fusedNext.id, fusedNext.instance, fusedNext);
+        fusedNext.targetsById.values().forEach(fusedNext::disconnect);
+        fusedNext.process.onStop();
+        fusedNext = null;
+    }
+
+    private void receiveStaged(VertexMessage message) throws Exception {
+        if (stageReceive == null) {
+            stageReceive = createReceive();
+        }
+        stageReceive.receiveMessage(message);
+    }
+
+    private CoreMetrics.Metrics metrics() {
+        var now = System.currentTimeMillis();
+        var edges = new HashMap<String, CoreMetrics.EdgeMetrics>();
+        targetsById.forEach((targetId, edge) -> edges.put(targetId, edge.metrics()));
+        var sent = sentRate.snapshot(now);
+        var mailboxDepth = hosted ? 0 : CountingMailbox.depth(getContext().getSelf());
+        return new CoreMetrics.Metrics(sent.tenSeconds(), messagesReceived, messagesSent, edges, lastQueueWait,
+                lastProcessing, receivedRate.snapshot(now), sent, mailboxDepth, log.dropped());
     }
 
     public VertexDescription describe() {
-        return new VertexDescription(id, name, code);
+        return new VertexDescription(id, name, code, deployment);
     }
 
     @Override
     public Receive<VertexMessage> createReceive() {
         return newReceiveBuilder()
                 .onMessage(CoreConsumer.Message.class, msg -> {
+                    if (starting) {
+                        stash.add(msg);
+                        return this;
+                    }
                     messagesReceived++;
-                    JsonNode body = msg.body();
+                    receivedRate.mark(System.currentTimeMillis(), 1);
+                    var start = System.nanoTime();
+                    queueWait.record(start - msg.sentNanos());
+                    if (process != null) {
+                        var fusedBefore = fusedNanos;
+                        startReceiving(arrive(msg.body(), msg.sourceId() == null, msg.sentNanos()));
+                        process.receive(msg.body());
+                        stopReceiving();
+                        recordProcessing(start, fusedBefore, 1);
+                    }
+                    consume(msg.sourceId(), 1);
+                    grantCredits();
+                    return this;
+                })
+                .onMessage(CoreConsumer.MessageBatch.class, msg -> {
+                    if (starting) {
+                        stash.add(msg);
+                        return this;
+                    }
+                    messagesReceived += msg.bodies().size();
+                    receivedRate.mark(System.currentTimeMillis(), msg.bodies().size());
+                    var start = System.nanoTime();
+                    queueWait.record(start - msg.sentNanos(), msg.bodies().size());
                     if (process != null) {
-                        process.receive(body);
+                        var fusedBefore = fusedNanos;
+                        // Messages sent while handling a batch carry the trace of the first traced message in it.
+                        Trace trace = null;
+                        for (Payload body : msg.bodies()) {
+                            var bodyTrace = arrive(body, false, msg.sentNanos());
+                            trace = trace == null ? bodyTrace : trace;
+                        }
+                        startReceiving(trace);
+                        process.receiveBatch(msg.bodies());
+                        stopReceiving();
+                        recordProcessing(start, fusedBefore, msg.bodies().size());
                     }
+                    consume(msg.sourceId(), msg.bodies().size());
+                    grantCredits();
                     return this;
                 })
                 .onMessage(CoreConsumer.Tick.class, msg -> {
                     Runnable runnable = periodicRunnableByKey.get(msg.key());
-                    if (runnable != null) {
+                    if (runnable != null && isBackpressured()) {
+                        deferredTicks.add(msg.key());
+                    } else if (runnable != null) {
                         runnable.run();
                     }
                     return this;
                 })
+                .onMessage(CoreConsumer.FlushBatch.class, msg -> {
+                    var edge = targetsById.get(msg.targetId());
+                    if (edge != null) {
+                        edge.flush(flowId, edge.batching(outputBatching));
+                    }
+                    return this;
+                })
+
+                .onMessage(CoreFlow.Attach.class, msg -> {
+                    sourcesById.put(msg.sourceId(), new IncomingEdge(msg.source()));
+                    msg.source().tell(new CoreFlow.Attached(id, instance, deployment, getContext().getSelf(), credits));
+                    return this;
+                })
+                .onMessage(CoreFlow.Detach.class, msg -> {
+                    var source = sourcesById.get(msg.sourceId());
+                    if (source != null && source.isFrom(msg.source())) {
+                        sourcesById.remove(msg.sourceId());
+                    }
+                    return migrateWhenDrained(false);
+                })
+                .onMessage(CoreFlow.Attached.class, msg -> {
+                    onAttached(msg);
+                    runDeferredTicks();
+                    grantCredits();
+                    return this;
+                })
+                .onMessage(CoreFlow.Credit.class, msg -> {
+                    onCredit(msg);
+                    runDeferredTicks();
+                    grantCredits();
+                    return this;
+                })
 
                 .onMessage(CoreLog.SubscribeLog.class, msg -> {
-                    logSubscriber = msg.subscriber();
-                    for (CoreLog.LogMessage logMessage : log) {
-                        logSubscriber.tell(logMessage);
+                    if (logSubscribers.contains(msg.subscriber())) {
+                        return this;
+                    }
+                    // The current subscribers get the pending lines first, so that the history holds no line that
+                    // the next flush sends again.
+                    flushLog();
+                    if (logSubscribers.isEmpty()) {
+                        var flush = new CoreLog.FlushLog();
+                        scheduler.startTimerWithFixedDelay(new LogFlushTimerKey(id), address(flush), logFlushInterval);
                     }
+                    logSubscribers.add(msg.subscriber());
+                    msg.subscriber().tell(new CoreLog.LogMessages(log.history(id)));
                     return this;
                 })
                 .onMessage(CoreLog.UnsubscribeLog.class, msg -> {
-                    logSubscriber = null;
+                    logSubscribers.remove(msg.subscriber());
+                    if (logSubscribers.isEmpty()) {
+                        scheduler.cancel(new LogFlushTimerKey(id));
+                    }
+                    return this;
+                })
+                .onMessage(CoreLog.FlushLog.class, msg -> {
+                    flushLog();
                     return this;
                 })
 
-                .onMessage(CoreMetrics.GetMetrics.class, msg -> {
-                    var now = System.currentTimeMillis();
-                    removeOldMessageReceiveTimestamps(now);
-                    var avgMessages = 1.0 * messageReceiveTimestamps.size() / ROLLING_AVERAGE_DURATION_SECONDS;
-                    var metrics = new CoreMetrics.Metrics(avgMessages, messagesReceived, messagesSent);
-                    msg.replyTo().tell(new CoreMetrics.MetricsWithId(id, metrics));
+                .onMessage(CoreMetrics.PublishMetrics.class, msg -> {
+                    lastQueueWait = queueWait.snapshot();
+                    lastProcessing = processing.snapshot();
+                    queueWait.reset();
+                    processing.reset();
+                    // Only changes are published, so that an idle vertex costs the readers nothing.
+                    var sample = new MetricsRegistry.Sample(id, instance, name, metrics());
+                    if (!sample.equals(publishedSample)) {
+                        metricsRegistry.publish(this, sample);
+                        publishedSample = sample;
+                    }
                     return this;
                 })
                 .onMessage(CoreControl.ShowCode.class, msg -> {
@@ -138,15 +784,42 @@ public class Core extends AbstractBehavior<VertexMessage> {
                     return this;
                 })
                 .onMessage(CoreControl.LoadCode.class, msg -> {
-                    periodicRunnableByKey.keySet().forEach(scheduler::cancel);
-                    periodicRunnableByKey.clear();
-                    log.clear();
-                    messageReceiveTimestamps.clear();
-                    messagesSent = 0;
-                    messagesReceived = 0;
-                    code = msg.code();
-                    process = compiler.compile(code).apply(this);
-                    msg.replyTo().tell(describe());
+                    // The running code keeps handling messages while the new code compiles.
+                    pipeCompiled(compiler.compileAsync(msg.code(), compileExecutor()), msg.code(), msg.replyTo());
+                    return this;
+                })
+                .onMessage(CodeCompiled.class, msg -> {
+                    // A newer version may have been loaded while this one compiled.
+                    if (msg.version() == codeVersion) {
+                        if (msg.failure() != null) {
+                            var cause = msg.failure() instanceof CompletionException ? msg.failure().getCause()
+                                    : msg.failure();
+                            log(CoreLog.Level.ERROR, "Could not compile the code: {}",
+                                    new Object[]{cause.getMessage()});
+                        } else {
+                            log(CoreLog.Level.INFO, "Code ready after {} ms",
+                                    new Object[]{msg.nanos() / 1_000_000});
+                            swap(msg.code(), msg.compiled());
+                        }
+                        codePending = false;
+                        if (starting && !awaitingState) {
+                            starting = false;
+                            unstash();
+                        }
+                        codeWaiters.forEach(waiter -> waiter.tell(new CoreControl.CodeReady(id)));
+                        codeWaiters.clear();
+                    }
+                    if (msg.replyTo() != null) {
+                        msg.replyTo().tell(describe());
+                    }
+                    return migrateWhenDrained(false);
+                })
+                .onMessage(CoreControl.AwaitCode.class, msg -> {
+                    if (codePending) {
+                        codeWaiters.add(msg.replyTo());
+                    } else {
+                        msg.replyTo().tell(new CoreControl.CodeReady(id));
+                    }
                     return this;
                 })
                 .onMessage(CoreControl.LoadName.class, msg -> {
@@ -155,28 +828,80 @@ public class Core extends AbstractBehavior<VertexMessage> {
                     return this;
                 })
                 .onMessage(CoreControl.Connect.class, msg -> {
-                    targetsById.put(msg.id(), msg.target());
+                    connect(msg);
                     return this;
                 })
                 .onMessage(CoreControl.Disconnect.class, msg -> {
-                    targetsById.remove(msg.id());
+                    var removed = targetsById.remove(msg.id());
+                    if (removed != null) {
+                        disconnect(removed);
+                        runDeferredTicks();
+                        grantCredits();
+                    }
+                    return this;
+                })
+                .onMessage(CoreControl.Fuse.class, msg -> {
+                    fuse(msg);
                     return this;
                 })
+                .onMessage(CoreControl.Unfuse.class, msg -> {
+                    handOverStages(msg.stageActors());
+                    stopStages();
+                    connect(msg.reconnect());
+                    return this;
+                })
+                .onMessage(CoreControl.Staged.class, msg -> {
+                    var stage = stage(msg.vertexId());
+                    if (stage != null) {
+                        stage.receiveStaged(msg.message());
+                        grantCredits();
+                    }
+                    return this;
+                })
+                .onMessage(CoreControl.Pause.class, msg -> {
+                    var edge = targetsById.get(msg.id());
+                    if (edge != null && !edge.isPaused()) {
+                        edge.pause();
+                        edge.target().tell(new CoreFlow.Detach(flowId, getContext().getSelf()));
+                    }
+                    return this;
+                })
+                .onMessage(CoreControl.Migrate.class, msg -> {
+                    migrateReplyTo = msg.replyTo();
+                    scheduler.startSingleTimer(new DrainTimerKey(id), new DrainTimedOut(), drainTimeout);
+                    return migrateWhenDrained(false);
+                })
+                .onMessage(DrainTimedOut.class, msg -> migrateWhenDrained(true))
                 .onMessage(CoreControl.Stop.class, msg -> {
+                    stopStages();
+                    targetsById.values().forEach(edge -> edge.close(flowId));
+                    process.onStop();
+                    return Behaviors.stopped();
+                })
+                .onMessage(CoreControl.StopChain.class, msg -> {
+                    // Stops the actors of a chain that is being fused, one after the other so that every actor has
+                    // flushed its edge before the next one stops.
+                    targetsById.values().forEach(edge -> {
+                        edge.close(flowId);
+                        if (msg.length() > 1) {
+                            edge.target().tell(new CoreControl.StopChain(msg.length() - 1, msg.head()));
+                        }
+                    });
+                    msg.head().tell(new CoreControl.StageState(id, snapshotState()));
                     process.onStop();
                     return Behaviors.stopped();
                 })
+                .onMessage(CoreControl.StageState.class, msg -> {
+                    var core = msg.vertexId().equals(id) ? this : stage(msg.vertexId());
+                    if (core != null) {
+                        core.takeState(msg.state());
+                    }
+                    return this;
+                })
+                .onSignal(PostStop.class, signal -> {
+                    metricsRegistry.remove(id, instance, this);
+                    return this;
+                })
                 .build();
     }
-
-    private void removeOldMessageReceiveTimestamps(long now) {
-        for (Iterator<Long> iterator = messageReceiveTimestamps.iterator(); iterator.hasNext(); ) {
-            Long timestamp = iterator.next();
-            if (timestamp < now - ROLLING_AVERAGE_DURATION_SECONDS * 1000) {
-                iterator.remove();
-            } else {
-                break;
-            }
-        }
-    }
 }
@@ -1,8 +1,21 @@
 package com.mvanniekerk.akka.compute.vertex;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import java.util.List;
 
 public interface CoreConsumer extends VertexMessage {
-    record Message(JsonNode body) implements CoreConsumer {}
+    /**
+     * @param sentNanos the {@link System#nanoTime()} at which the message was handed to the mailbox
+     */
+    record Message(String sourceId, Payload body, long sentNanos) implements CoreConsumer {
+        public Message(String sourceId, Payload body) {
+            this(sourceId, body, System.nanoTime());
+        }
+    }
+    record MessageBatch(String sourceId, List<Payload> bodies, long sentNanos) implements CoreConsumer {
+        public MessageBatch(String sourceId, List<Payload> bodies) {
+            this(sourceId, bodies, System.nanoTime());
+        }
+    }
     record Tick(String key) implements CoreConsumer {}
+    record FlushBatch(String targetId) implements CoreConsumer {}
 }
@@ -1,13 +1,55 @@
 package com.mvanniekerk.akka.compute.vertex;
 
 import akka.actor.typed.ActorRef;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+import java.util.Map;
 
 public interface CoreControl extends VertexMessage {
 
     record LoadCode(ActorRef<VertexDescription> replyTo, String code) implements CoreControl {}
     record LoadName(ActorRef<VertexDescription> replyTo, String name) implements CoreControl {}
     record ShowCode(ActorRef<String> replyTo) implements CoreControl {}
-    record Connect(String id, ActorRef<? super CoreConsumer> target) implements CoreControl {}
+    record Connect(String id, ActorRef<VertexMessage> target, Batching batching) implements CoreControl {}
     record Disconnect(String id) implements CoreControl {}
     record Stop() implements CoreControl {}
+    /**
+     * Replies once the last code loaded into the vertex is running, or has failed to compile.
+     */
+    record AwaitCode(ActorRef<CodeReady> replyTo) implements CoreControl {}
+    record CodeReady(String id) {}
+
+    // operator fusion
+    record Fuse(List<VertexDescription> stages, List<Connect> tailEdges) implements CoreControl {}
+    /**
+     * @param stageActors the actors that the stages run in from now on, by vertex id, which are handed their state
+     */
+    record Unfuse(Connect reconnect, Map<String, ActorRef<VertexMessage>> stageActors) implements CoreControl {}
+    /**
+     * @param head the actor that the stages run in from now on, which is handed their state
+     */
+    record StopChain(int length, ActorRef<VertexMessage> head) implements CoreControl {}
+    /**
+     * The state of the code of a stage, handed over as the stage moves into or out of the actor of its head.
+     */
+    record StageState(String vertexId, JsonNode state) implements CoreControl {}
+    record Staged(String vertexId, VertexMessage message) implements CoreControl {}
+
+    // live migration
+    /**
+     * Stops sending over the edge to the target, until the edge is connected to another actor. The messages sent so
+     * far are followed by a detach, so that the target knows when it has received all of them.
+     */
+    record Pause(String id) implements CoreControl {}
+    /**
+     * Stops the vertex once every source has paused its edge to it and its mailbox holds nothing from them, and replies
+     * with the state of its code.
+     */
+    record Migrate(ActorRef<Migrated> replyTo) implements CoreControl {}
+    /**
+     * @param held the messages that the paused edges of the vertex still held, by target, since a target that moves
+     *             as well has not been connected again yet
+     */
+    record Migrated(String id, ActorRef<VertexMessage> core, JsonNode state, Map<String, List<JsonNode>> held) {}
 }
@@ -0,0 +1,20 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorRef;
+
+/**
+ * Credit based flow control between connected vertices. An upstream vertex attaches itself to its target, which
+ * replies with an initial credit. Every message sent over the edge uses up one credit, and the target grants new
+ * credits as it processes the messages.
+ * <p>
+ * Every instance of a vertex with several instances replies to the attach on its own, and grants its own credits.
+ * The source sends to the instances directly, so that none of them gets more than it granted, see
+ * {@link InstanceCredits}.
+ */
+public interface CoreFlow extends VertexMessage {
+    record Attach(String sourceId, ActorRef<? super CoreFlow> source) implements CoreFlow {}
+    record Detach(String sourceId, ActorRef<? super CoreFlow> source) implements CoreFlow {}
+    record Attached(String targetId, int instance, Deployment deployment, ActorRef<VertexMessage> core,
+                    int amount) implements CoreFlow {}
+    record Credit(String targetId, int instance, int amount) implements CoreFlow {}
+}
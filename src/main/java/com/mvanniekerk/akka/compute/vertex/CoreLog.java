@@ -1,13 +1,30 @@
 package com.mvanniekerk.akka.compute.vertex;
 
 import akka.actor.typed.ActorRef;
+import org.slf4j.helpers.MessageFormatter;
 
-import java.time.ZonedDateTime;
+import java.time.Instant;
+import java.util.List;
 
 public interface CoreLog extends VertexMessage {
 
-    record SubscribeLog(ActorRef<LogMessage> subscriber) implements CoreLog {}
-    record UnsubscribeLog() implements CoreLog {}
+    enum Level { DEBUG, INFO, WARN, ERROR }
 
-    record LogMessage(ZonedDateTime timestamp, String computeId, String message) {}
+    record SubscribeLog(ActorRef<LogMessages> subscriber) implements CoreLog {}
+    record UnsubscribeLog(ActorRef<LogMessages> subscriber) implements CoreLog {}
+    record FlushLog() implements CoreLog {}
+
+    record LogMessage(Instant timestamp, String computeId, Level level, String message) {}
+
+    /**
+     * The lines logged since the previous flush, oldest first.
+     */
+    record LogMessages(List<LogMessage> messages) {}
+
+    /**
+     * Replaces every {@code {}} in the format with the next argument. Without arguments the format is the message.
+     */
+    static String format(String format, Object[] arguments) {
+        return arguments == null ? format : MessageFormatter.arrayFormat(format, arguments).getMessage();
+    }
 }
@@ -1,10 +1,65 @@
 package com.mvanniekerk.akka.compute.vertex;
 
-import akka.actor.typed.ActorRef;
+import java.util.HashMap;
+import java.util.Map;
 
 public interface CoreMetrics extends VertexMessage {
-    record GetMetrics(ActorRef<MetricsWithId> replyTo) implements CoreMetrics {}
+    record PublishMetrics() implements CoreMetrics {}
 
-    record MetricsWithId(String vertexId, Metrics metrics) {}
-    record Metrics(double msgFreqPerSec, long messagesReceived, long messagesSent) {}
+    /**
+     * @param msgFreqPerSec the messages sent per second over the last ten seconds
+     * @param queueWait     the time messages spent in the mailbox, over the last publish interval
+     * @param processing    the time the vertex spent on a message, over the last publish interval
+     * @param mailboxDepth  the messages waiting in the mailbox; zero for a stage of a fused chain
+     * @param logDropped    the log lines dropped for going over the limit of lines per second
+     */
+    record Metrics(double msgFreqPerSec, long messagesReceived, long messagesSent, Map<String, EdgeMetrics> edges,
+                   Latency queueWait, Latency processing, Rate received, Rate sent, long mailboxDepth,
+                   long logDropped) {
+        public static Metrics combine(Metrics left, Metrics right) {
+            var edges = new HashMap<>(left.edges);
+            right.edges.forEach((id, edge) -> edges.merge(id, edge, EdgeMetrics::combine));
+            return new Metrics(left.msgFreqPerSec + right.msgFreqPerSec,
+                    left.messagesReceived + right.messagesReceived,
+                    left.messagesSent + right.messagesSent,
+                    edges,
+                    Latency.combine(left.queueWait, right.queueWait),
+                    Latency.combine(left.processing, right.processing),
+                    Rate.combine(left.received, right.received),
+                    Rate.combine(left.sent, right.sent),
+                    left.mailboxDepth + right.mailboxDepth,
+                    left.logDropped + right.logDropped);
+        }
+    }
+
+    /**
+     * Messages per second over the last second, ten seconds and minute.
+     */
+    record Rate(double oneSecond, double tenSeconds, double oneMinute) {
+        public static Rate combine(Rate left, Rate right) {
+            return new Rate(left.oneSecond + right.oneSecond, left.tenSeconds + right.tenSeconds,
+                    left.oneMinute + right.oneMinute);
+        }
+    }
+
+    /**
+     * Percentiles of a duration, in microseconds.
+     */
+    record Latency(long count, double p50, double p99, double p999, double max) {
+        /**
+         * Percentiles cannot be merged exactly, so the combination of several instances reports the worst instance.
+         */
+        public static Latency combine(Latency left, Latency right) {
+            return new Latency(left.count + right.count, Math.max(left.p50, right.p50),
+                    Math.max(left.p99, right.p99), Math.max(left.p999, right.p999), Math.max(left.max, right.max));
+        }
+    }
+
+    record EdgeMetrics(long credits, long buffered, long blockedMillis, long dropped, Rate sent) {
+        public static EdgeMetrics combine(EdgeMetrics left, EdgeMetrics right) {
+            return new EdgeMetrics(left.credits + right.credits, left.buffered + right.buffered,
+                    left.blockedMillis + right.blockedMillis, left.dropped + right.dropped,
+                    Rate.combine(left.sent, right.sent));
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.Terminated;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Runs the instances of a vertex with several instances as its children. Attached sources send to the instances
+ * directly. What is sent to the vertex itself goes to the instance that its partition key maps to, the same one an
+ * attached source picks, or else round-robin, and everything that is not a message goes to every instance. When an
+ * instance stops, the vertex stops, since no other instance can take over its keys.
+ */
+class CorePool extends AbstractBehavior<VertexMessage> {
+    private final Deployment deployment;
+    private final List<ActorRef<VertexMessage>> instances = new ArrayList<>();
+    private int next = 0;
+
+    static Behavior<VertexMessage> create(Deployment deployment, Props props,
+                                          IntFunction<Behavior<VertexMessage>> instance) {
+        return Behaviors.setup(context -> new CorePool(context, deployment, props, instance));
+    }
+
+    private CorePool(ActorContext<VertexMessage> context, Deployment deployment, Props props,
+                     IntFunction<Behavior<VertexMessage>> instance) {
+        super(context);
+        this.deployment = deployment;
+        for (int i = 0; i < deployment.instances(); i++) {
+            var core = context.spawn(instance.apply(i), "instance-" + i, props);
+            context.watch(core);
+            instances.add(core);
+        }
+    }
+
+    @Override
+    public Receive<VertexMessage> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(CoreConsumer.Message.class, msg -> route(msg, msg.body()))
+                .onMessage(CoreConsumer.MessageBatch.class, msg -> route(msg, msg.bodies().get(0)))
+                .onMessage(VertexMessage.class, msg -> {
+                    instances.forEach(core -> core.tell(msg));
+                    return this;
+                })
+                .onSignal(Terminated.class, signal -> Behaviors.stopped())
+                .build();
+    }
+
+    /**
+     * A batch is routed as a whole, by the key of its first message. Edges into a vertex with a partition key are
+     * therefore never batched.
+     */
+    private Behavior<VertexMessage> route(VertexMessage message, Payload body) {
+        int instance;
+        if (deployment.partitionKey() != null) {
+            instance = deployment.instanceOf(body.field(deployment.partitionKey()));
+        } else {
+            instance = next;
+            next = (next + 1) % instances.size();
+        }
+        instances.get(instance).tell(message);
+        return this;
+    }
+}
@@ -0,0 +1,24 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * How a vertex is run. A vertex with a parallelism above one is run by that many {@link Core} instances. Messages are
+ * spread over the instances by the credits they have granted, or by the value of the {@code partitionKey} field of
+ * the message when one is set, so that all messages with the same key end up at the same instance. The
+ * {@code dispatcher} names one of the dispatchers under {@code vertex.dispatchers} to run the instances on.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record Deployment(Integer parallelism, String partitionKey, String dispatcher) {
+
+    public int instances() {
+        return parallelism == null ? 1 : Math.max(1, parallelism);
+    }
+
+    /**
+     * The instance that the messages with the value of the partition key go to.
+     */
+    public int instanceOf(String key) {
+        return Math.floorMod(key.hashCode(), instances());
+    }
+}
@@ -0,0 +1,30 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorRef;
+
+class IncomingEdge {
+    private final ActorRef<? super CoreFlow> source;
+    private int consumed = 0;
+
+    IncomingEdge(ActorRef<? super CoreFlow> source) {
+        this.source = source;
+    }
+
+    boolean isFrom(ActorRef<?> ref) {
+        return source.equals(ref);
+    }
+
+    void consume(int count) {
+        consumed += count;
+    }
+
+    /**
+     * Returns the used up credits to the source once at least {@code threshold} of them have been consumed.
+     */
+    void grant(String targetId, int instance, int threshold) {
+        if (consumed > 0 && consumed >= threshold) {
+            source.tell(new CoreFlow.Credit(targetId, instance, consumed));
+            consumed = 0;
+        }
+    }
+}
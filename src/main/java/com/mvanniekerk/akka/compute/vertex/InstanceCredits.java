@@ -0,0 +1,79 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorRef;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The credits that a source holds for the instances of one target. The source sends to the instances directly: a
+ * message with a partition key to the instance that the key maps to, any other message to the instance with the most
+ * credits. An instance thereby never gets more messages than it granted credits for, however slow it is compared to
+ * the others. A vertex with a single instance is the same as a pool of one.
+ */
+public final class InstanceCredits {
+    private List<ActorRef<VertexMessage>> cores = List.of();
+    private int[] credits = new int[0];
+    private Deployment deployment;
+    private int total = 0;
+
+    public void attached(CoreFlow.Attached attached) {
+        var instances = attached.deployment() == null ? 1 : attached.deployment().instances();
+        if (cores.size() != instances) {
+            cores = new ArrayList<>(Collections.nCopies(instances, null));
+            credits = new int[instances];
+            total = 0;
+        }
+        deployment = attached.deployment();
+        cores.set(attached.instance(), attached.core());
+        grant(attached.instance(), attached.amount());
+    }
+
+    /**
+     * A credit of an instance that has not replied to the attach yet is left out.
+     */
+    public void grant(int instance, int amount) {
+        if (instance < cores.size() && cores.get(instance) != null) {
+            credits[instance] += amount;
+            total += amount;
+        }
+    }
+
+    public int total() {
+        return total;
+    }
+
+    /**
+     * The instance to send the message to, or -1 when that instance has no credits. The instances of a vertex with a
+     * partition key are picked the way its pool picks them, so that a key goes to the same instance whichever way
+     * its messages come.
+     */
+    public int instanceFor(Payload message) {
+        var partitionKey = deployment == null ? null : deployment.partitionKey();
+        if (partitionKey != null) {
+            var instance = deployment.instanceOf(message.field(partitionKey));
+            return credits[instance] > 0 ? instance : -1;
+        }
+        var best = -1;
+        for (int instance = 0; instance < credits.length; instance++) {
+            if (credits[instance] > 0 && (best < 0 || credits[instance] > credits[best])) {
+                best = instance;
+            }
+        }
+        return best;
+    }
+
+    public int credits(int instance) {
+        return credits[instance];
+    }
+
+    /**
+     * Uses up credits of the instance, and returns the actor to send the messages to.
+     */
+    public ActorRef<VertexMessage> take(int instance, int amount) {
+        credits[instance] -= amount;
+        total -= amount;
+        return cores.get(instance);
+    }
+}
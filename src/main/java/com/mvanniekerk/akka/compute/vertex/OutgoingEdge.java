@@ -0,0 +1,179 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorRef;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The edge from a source to one target. Messages go out as far as the credits of the instances of the target allow,
+ * and wait in order for them otherwise.
+ */
+class OutgoingEdge {
+    private final ActorRef<VertexMessage> target;
+    private final Batching batching;
+    private final int maxBuffered;
+    private final Deque<Payload> pending = new ArrayDeque<>();
+    private final RateMeter sent = new RateMeter();
+    private final InstanceCredits credits = new InstanceCredits();
+
+    private boolean lingerScheduled = false;
+    private long blockedSince = -1;
+    private long blockedNanos = 0;
+    private long dropped = 0;
+    private boolean paused = false;
+
+    OutgoingEdge(ActorRef<VertexMessage> target, Batching batching, int maxBuffered) {
+        this.target = target;
+        this.batching = batching;
+        this.maxBuffered = maxBuffered;
+    }
+
+    /**
+     * A paused edge without a target yet, for a vertex that moved to this node while its edge to the target was
+     * paused. It keeps the messages from the previous node, and what is sent after them, until the edge is connected.
+     */
+    static OutgoingEdge held(List<Payload> messages, int maxBuffered) {
+        var edge = new OutgoingEdge(null, null, maxBuffered);
+        edge.pending.addAll(messages);
+        edge.pause();
+        return edge;
+    }
+
+    ActorRef<VertexMessage> target() {
+        return target;
+    }
+
+    Batching batching(Batching vertexDefault) {
+        return batching != null ? batching : vertexDefault;
+    }
+
+    boolean isBlocked() {
+        return blockedSince >= 0;
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Stops sending, and keeps every message until the edge is replaced by one to the new target. An edge that holds
+     * messages counts as blocked, so that its source is backpressured meanwhile.
+     */
+    void pause() {
+        paused = true;
+        updateBlocked();
+    }
+
+    /**
+     * Takes over the messages that the paused edge to the previous target still holds, in the order they were sent.
+     */
+    void takeOver(OutgoingEdge previous) {
+        pending.addAll(previous.pending);
+        previous.pending.clear();
+        dropped += previous.dropped;
+        updateBlocked();
+    }
+
+    /**
+     * Sends the message as far as the credits allow, and buffers the rest. When the buffer is full the oldest message
+     * is dropped. Returns true when a flush should be scheduled after the linger time. A batch of one is always full,
+     * and messages that wait for credits go out when the credits arrive, so neither needs a flush.
+     */
+    boolean offer(String sourceId, Payload message, Batching batching) {
+        if (pending.size() >= maxBuffered) {
+            pending.poll();
+            dropped++;
+        }
+        pending.add(message);
+        var batched = batching != null && batching.maxSize() > 1;
+        send(sourceId, batching, !batched);
+        if (batched && !pending.isEmpty() && canSend() && !lingerScheduled) {
+            lingerScheduled = true;
+            return true;
+        }
+        return false;
+    }
+
+    void attached(String sourceId, CoreFlow.Attached attached, Batching batching) {
+        credits.attached(attached);
+        send(sourceId, batching, true);
+    }
+
+    void grant(String sourceId, int instance, int amount, Batching batching) {
+        credits.grant(instance, amount);
+        send(sourceId, batching, true);
+    }
+
+    void flush(String sourceId, Batching batching) {
+        lingerScheduled = false;
+        send(sourceId, batching, true);
+    }
+
+    /**
+     * Removes and returns the buffered messages of a paused edge, whose vertex moves to another node.
+     */
+    List<Payload> takePending() {
+        var messages = List.copyOf(pending);
+        pending.clear();
+        updateBlocked();
+        return messages;
+    }
+
+    /**
+     * Sends everything that is still buffered regardless of credits, used when the edge is removed. The messages go
+     * to the target itself, whose pool picks the instances.
+     */
+    void close(String sourceId) {
+        while (!paused && !pending.isEmpty()) {
+            sent.mark(System.currentTimeMillis(), 1);
+            target.tell(new CoreConsumer.Message(sourceId, pending.poll()));
+        }
+        updateBlocked();
+    }
+
+    CoreMetrics.EdgeMetrics metrics() {
+        var blocked = blockedNanos + (isBlocked() ? System.nanoTime() - blockedSince : 0);
+        return new CoreMetrics.EdgeMetrics(credits.total(), pending.size(), blocked / 1_000_000, dropped,
+                sent.snapshot(System.currentTimeMillis()));
+    }
+
+    private boolean canSend() {
+        return !paused && !pending.isEmpty() && credits.instanceFor(pending.peek()) >= 0;
+    }
+
+    private void send(String sourceId, Batching batching, boolean partialBatches) {
+        while (canSend()) {
+            int size = batching == null ? 1 : Math.min(batching.maxSize(), pending.size());
+            if (!partialBatches && size < batching.maxSize()) {
+                break;
+            }
+            var instance = credits.instanceFor(pending.peek());
+            size = Math.min(size, credits.credits(instance));
+            var core = credits.take(instance, size);
+            sent.mark(System.currentTimeMillis(), size);
+            if (size == 1) {
+                core.tell(new CoreConsumer.Message(sourceId, pending.poll()));
+            } else {
+                List<Payload> batch = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    batch.add(pending.poll());
+                }
+                core.tell(new CoreConsumer.MessageBatch(sourceId, batch));
+            }
+        }
+        updateBlocked();
+    }
+
+    private void updateBlocked() {
+        var blocked = !pending.isEmpty() && !canSend();
+        if (blocked && !isBlocked()) {
+            blockedSince = System.nanoTime();
+        } else if (!blocked && isBlocked()) {
+            blockedNanos += System.nanoTime() - blockedSince;
+            blockedSince = -1;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mvanniekerk.akka.compute.util.Codecs;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The body of a message travelling between vertices. A payload wraps either an immutable Java object, a JSON tree or
+ * raw JSON bytes. Local edges hand the wrapped object over as is; the JSON representation is only built when
+ * somebody asks for it, and is cached afterwards. A sampled payload also carries its {@link Trace}.
+ */
+public final class Payload {
+    private static final ClassValue<Map<String, Method>> RECORD_ACCESSORS = new ClassValue<>() {
+        @Override
+        protected Map<String, Method> computeValue(Class<?> type) {
+            var accessors = new HashMap<String, Method>();
+            for (RecordComponent component : type.getRecordComponents()) {
+                var accessor = component.getAccessor();
+                accessor.setAccessible(true);
+                accessors.put(component.getName(), accessor);
+            }
+            return accessors;
+        }
+    };
+
+    private final Object value;
+    private final byte[] bytes;
+    private final Trace trace;
+    private volatile JsonNode json;
+
+    private Payload(Object value, byte[] bytes, JsonNode json, Trace trace) {
+        this.value = value;
+        this.bytes = bytes;
+        this.json = json;
+        this.trace = trace;
+    }
+
+    public static Payload of(Object value) {
+        if (value instanceof Payload payload) {
+            return payload;
+        }
+        if (value instanceof JsonNode node) {
+            return new Payload(null, null, node, null);
+        }
+        return new Payload(value, null, null, null);
+    }
+
+    public static Payload ofBytes(byte[] json) {
+        return new Payload(null, json, null, null);
+    }
+
+    public Trace trace() {
+        return trace;
+    }
+
+    /**
+     * The same payload with another trace. The value and its JSON forms are shared.
+     */
+    public Payload withTrace(Trace trace) {
+        return trace == this.trace ? this : new Payload(value, bytes, json, trace);
+    }
+
+    /**
+     * The wrapped Java object, or null when this payload was created from JSON.
+     */
+    public Object value() {
+        return value;
+    }
+
+    public JsonNode json() {
+        var result = json;
+        if (result == null) {
+            result = value != null ? Codecs.valueToTree(value) : Codecs.readTree(bytes);
+            json = result;
+        }
+        return result;
+    }
+
+    /**
+     * The text of a top-level field, as {@code json().path(name).asText()} gives it, without building the JSON tree
+     * when it is not there yet: a record or map is read directly, and raw JSON is scanned up to the field.
+     */
+    public String field(String name) {
+        if (json == null && value instanceof Record) {
+            var accessor = RECORD_ACCESSORS.get(value.getClass()).get(name);
+            if (accessor == null) {
+                return "";
+            }
+            try {
+                return text(accessor.invoke(value));
+            } catch (ReflectiveOperationException e) {
+                // Fall back to the JSON tree.
+            }
+        } else if (json == null && value instanceof Map<?, ?> map) {
+            return map.containsKey(name) ? text(map.get(name)) : "";
+        } else if (json == null && bytes != null) {
+            return scan(name);
+        }
+        return json().path(name).asText();
+    }
+
+    private static String text(Object field) {
+        if (field == null || field instanceof CharSequence || field instanceof Number || field instanceof Boolean) {
+            return String.valueOf(field);
+        }
+        // Objects and arrays have no text, and anything else is converted like Jackson would.
+        var node = Codecs.valueToTree(field);
+        return node.asText();
+    }
+
+    private String scan(String name) {
+        try (var parser = Codecs.mapper().getFactory().createParser(bytes)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return "";
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var fieldName = parser.getCurrentName();
+                var token = parser.nextToken();
+                if (fieldName.equals(name)) {
+                    return token.isScalarValue() ? parser.getText() : "";
+                }
+                parser.skipChildren();
+            }
+            return "";
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public <T> T as(Class<T> type) {
+        if (type.isInstance(value)) {
+            return type.cast(value);
+        }
+        if (json == null && bytes != null) {
+            return Codecs.readValue(bytes, type);
+        }
+        return Codecs.treeToValue(json(), type);
+    }
+
+    public byte[] bytes() {
+        if (bytes != null) {
+            return bytes;
+        }
+        return Codecs.writeValueAsBytes(value != null ? value : json);
+    }
+
+    @Override
+    public String toString() {
+        return json().toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import com.mvanniekerk.akka.compute.util.Codecs;
+
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Measures what a hop between two local vertices costs to encode and decode the message. It compares sending a record
+ * as a JSON tree that the consumer converts back, which every hop did before payloads, with handing the record over in
+ * a {@link Payload}, and with a payload whose consumer asks for the JSON anyway. Messages from outside the graph
+ * arrive as bytes, so reading those is measured as well.
+ * <p>
+ * Arguments: the messages per round (1000000) and the number of rounds (5), of which the first warms up.
+ */
+public final class PayloadBenchmark {
+    public record NumberMessage(long number, ZonedDateTime sentTime) {}
+
+    /**
+     * Where the results go, so that the JIT cannot skip the work.
+     */
+    private static volatile long sink;
+
+    private PayloadBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        var messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        var rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        var sentTime = ZonedDateTime.now();
+        var bytes = Codecs.writeValueAsBytes(new NumberMessage(0, sentTime));
+
+        var hops = new LinkedHashMap<String, LongUnaryOperator>();
+        hops.put("JSON tree", number -> {
+            var tree = Codecs.valueToTree(new NumberMessage(number, sentTime));
+            return Codecs.treeToValue(tree, NumberMessage.class).number();
+        });
+        hops.put("payload", number -> Payload.of(new NumberMessage(number, sentTime)).as(NumberMessage.class).number());
+        hops.put("payload as JSON", number -> Payload.of(new NumberMessage(number, sentTime)).json()
+                .path("number").asLong());
+        hops.put("bytes as JSON tree", number -> {
+            var tree = Codecs.readTree(bytes);
+            return Codecs.treeToValue(tree, NumberMessage.class).number() + number;
+        });
+        hops.put("bytes as payload", number -> Payload.ofBytes(bytes).as(NumberMessage.class).number() + number);
+
+        var nanosPerHop = new LinkedHashMap<String, Double>();
+        for (int round = 0; round < rounds; round++) {
+            for (Map.Entry<String, LongUnaryOperator> hop : hops.entrySet()) {
+                var nanos = measure(hop.getValue(), messages);
+                // The first round warms up the codecs and the JIT.
+                if (round > 0) {
+                    nanosPerHop.merge(hop.getKey(), nanos / (rounds - 1), Double::sum);
+                }
+            }
+        }
+        var baseline = nanosPerHop.get("JSON tree");
+        System.out.printf("%-20s %10s %10s%n", "hop", "ns/msg", "vs tree");
+        nanosPerHop.forEach((hop, nanos) -> System.out.printf("%-20s %10.0f %9.1fx%n", hop, nanos, baseline / nanos));
+    }
+
+    /**
+     * The nanoseconds per message.
+     */
+    private static double measure(LongUnaryOperator hop, int messages) {
+        var checksum = 0L;
+        var start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            checksum += hop.applyAsLong(i);
+        }
+        var nanos = System.nanoTime() - start;
+        sink = checksum;
+        return (double) nanos / messages;
+    }
+}
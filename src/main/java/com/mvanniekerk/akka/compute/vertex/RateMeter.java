@@ -0,0 +1,48 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import java.util.Arrays;
+
+/**
+ * Counts events in a ring of one second buckets, to report the rate over the last second, ten seconds and minute.
+ * Only complete seconds are counted. The memory use does not depend on the rate, and marking never allocates.
+ */
+final class RateMeter {
+    private static final int BUCKETS = 61;
+
+    private final long[] counts = new long[BUCKETS];
+    private final long[] secondOfBucket = new long[BUCKETS];
+
+    void mark(long nowMillis, int events) {
+        var second = nowMillis / 1000;
+        var bucket = (int) (second % BUCKETS);
+        if (secondOfBucket[bucket] != second) {
+            secondOfBucket[bucket] = second;
+            counts[bucket] = 0;
+        }
+        counts[bucket] += events;
+    }
+
+    /**
+     * Events per second over the complete seconds in the window.
+     */
+    double rate(long nowMillis, int windowSeconds) {
+        var current = nowMillis / 1000;
+        var sum = 0L;
+        for (long second = current - windowSeconds; second < current; second++) {
+            var bucket = (int) (second % BUCKETS);
+            if (secondOfBucket[bucket] == second) {
+                sum += counts[bucket];
+            }
+        }
+        return (double) sum / windowSeconds;
+    }
+
+    CoreMetrics.Rate snapshot(long nowMillis) {
+        return new CoreMetrics.Rate(rate(nowMillis, 1), rate(nowMillis, 10), rate(nowMillis, 60));
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(secondOfBucket, 0);
+    }
+}
@@ -0,0 +1,37 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The trace context of a sampled message: where and when it entered the graph, and the vertices it has passed
+ * through since. Messages that are not sampled have no trace at all.
+ *
+ * @param originNanos the {@link System#nanoTime()} at which the message entered the graph
+ * @param hops        the origin, followed by the vertices that sent the message on
+ */
+public record Trace(long traceId, long originNanos, List<String> hops) {
+    /**
+     * Traces of messages that travel in circles are dropped after this many hops.
+     */
+    private static final int MAX_HOPS = 32;
+
+    public static Trace start(String origin, long originNanos) {
+        return new Trace(ThreadLocalRandom.current().nextLong(), originNanos, List.of(origin));
+    }
+
+    /**
+     * The trace of the message after it has been sent on by the vertex, or null once it has too many hops.
+     */
+    public Trace through(String vertexId) {
+        if (hops.size() >= MAX_HOPS) {
+            return null;
+        }
+        var next = new ArrayList<String>(hops.size() + 1);
+        next.addAll(hops);
+        next.add(vertexId);
+        return new Trace(traceId, originNanos, Collections.unmodifiableList(next));
+    }
+}
@@ -1,4 +1,7 @@
 package com.mvanniekerk.akka.compute.vertex;
 
-public record VertexDescription(String id, String name, String code) {
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record VertexDescription(String id, String name, String code, Deployment deployment) {
 }
@@ -0,0 +1,124 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The recent log lines of a vertex, in a ring of primitive timestamps, levels and unformatted messages. A line is
+ * only formatted when it is sent to a subscriber. Lines below the level, or over the limit of lines per second, are
+ * not kept; the lines over the limit are counted.
+ */
+final class VertexLog {
+    private final long[] timestamps;
+    private final CoreLog.Level[] levels;
+    private final String[] formats;
+    private final Object[][] arguments;
+    private final int maxLinesPerSecond;
+
+    private CoreLog.Level level;
+    private long written = 0;
+    private long drained = 0;
+    private long windowSecond = -1;
+    private int linesInWindow = 0;
+    private long dropped = 0;
+    private long droppedDrained = 0;
+
+    VertexLog(int capacity, CoreLog.Level level, int maxLinesPerSecond) {
+        this.timestamps = new long[capacity];
+        this.levels = new CoreLog.Level[capacity];
+        this.formats = new String[capacity];
+        this.arguments = new Object[capacity][];
+        this.level = level;
+        this.maxLinesPerSecond = maxLinesPerSecond;
+    }
+
+    boolean isEnabled(CoreLog.Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    void setLevel(CoreLog.Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Whether a line at the level is kept, which counts it towards the limit of lines per second. A line that is
+     * admitted is then stored.
+     */
+    boolean admit(long now, CoreLog.Level level) {
+        if (!isEnabled(level)) {
+            return false;
+        }
+        if (maxLinesPerSecond > 0) {
+            var second = now / 1000;
+            if (second != windowSecond) {
+                windowSecond = second;
+                linesInWindow = 0;
+            }
+            if (++linesInWindow > maxLinesPerSecond) {
+                dropped++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The arguments are kept as they are until the line is formatted, so they should not change afterwards.
+     */
+    void store(long now, CoreLog.Level level, String format, Object[] arguments) {
+        var index = (int) (written % timestamps.length);
+        timestamps[index] = now;
+        levels[index] = level;
+        formats[index] = format;
+        this.arguments[index] = arguments;
+        written++;
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+    /**
+     * All lines that are still kept.
+     */
+    List<CoreLog.LogMessage> history(String computeId) {
+        return lines(computeId, Math.max(0, written - timestamps.length));
+    }
+
+    /**
+     * The lines added since the previous drain, followed by a warning when lines were dropped in the meantime.
+     */
+    List<CoreLog.LogMessage> drain(String computeId) {
+        var lines = lines(computeId, Math.max(drained, written - timestamps.length));
+        drained = written;
+        if (dropped > droppedDrained) {
+            var message = (dropped - droppedDrained) + " lines over the limit of " + maxLinesPerSecond
+                    + " per second were dropped";
+            lines.add(new CoreLog.LogMessage(Instant.now(), computeId, CoreLog.Level.WARN, message));
+            droppedDrained = dropped;
+        }
+        return lines;
+    }
+
+    void clear() {
+        written = 0;
+        drained = 0;
+        dropped = 0;
+        droppedDrained = 0;
+        Arrays.fill(arguments, null);
+        Arrays.fill(formats, null);
+    }
+
+    private List<CoreLog.LogMessage> lines(String computeId, long from) {
+        var lines = new ArrayList<CoreLog.LogMessage>((int) (written - from) + 1);
+        for (long position = from; position < written; position++) {
+            var index = (int) (position % timestamps.length);
+            var message = CoreLog.format(formats[index], arguments[index]);
+            lines.add(new CoreLog.LogMessage(Instant.ofEpochMilli(timestamps[index]), computeId, levels[index],
+                    message));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,46 @@
+package com.mvanniekerk.akka.compute.vertex;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * The settings under {@code vertex} that every {@link Core} needs, read from the config once per actor system rather
+ * than once per vertex.
+ */
+final class VertexSettings implements Extension {
+    static final ExtensionId<VertexSettings> ID = new ExtensionId<>() {
+        @Override
+        public VertexSettings createExtension(ActorSystem<?> system) {
+            return new VertexSettings(system.settings().config().getConfig("vertex"));
+        }
+    };
+
+    final int credits;
+    final int maxBuffered;
+    final double traceSampleRate;
+    final CoreLog.Level logLevel;
+    final int maxLogLinesPerSecond;
+    final Duration logFlushInterval;
+    final Duration publishInterval;
+    final Duration drainTimeout;
+
+    private VertexSettings(Config config) {
+        credits = config.getInt("flow-control.credits");
+        maxBuffered = config.getInt("flow-control.max-buffered");
+        traceSampleRate = config.getDouble("tracing.sample-rate");
+        logLevel = CoreLog.Level.valueOf(config.getString("logging.level").toUpperCase(Locale.ROOT));
+        maxLogLinesPerSecond = config.getInt("logging.max-lines-per-second");
+        logFlushInterval = config.getDuration("logging.flush-interval");
+        publishInterval = config.getDuration("metrics.publish-interval");
+        drainTimeout = config.getDuration("cluster.placement.drain-timeout");
+    }
+
+    static VertexSettings get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+}